@@ -0,0 +1,167 @@
+package msit.apologetikk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Build step for the static files, run by Maven in process-classes on target/classes/static (see pom.xml). It is run
+ * as a single source file (java StaticAssetBuilder.java), so it is not part of the application jar.
+ *
+ * For every evidence/*.json, js/*.js and css/*.css it writes
+ *
+ *   name.<hash>.ext     - a copy named after the first 12 hex digits of the SHA-256 of the content
+ *   name.<hash>.ext.gz  - the copy gzipped at the best compression level
+ *   name.<hash>.ext.br  - the copy compressed with brotli, only if the brotli command is installed
+ *
+ * and asset-manifest.json with the logical name of each file and its hashed name, e.g.
+ * "evidence/tutorial.json": "evidence/tutorial.3f2a9c1b7d4e.json". The src/href references to these files in the
+ * *.html pages are changed to the hashed names. Imports between the js modules are left as they are - they keep the
+ * plain names and are revalidated. StaticAssets serves the hashed files with immutable caching.
+ *
+ * Hashed files from earlier builds are deleted first, so target/classes only has the current ones.
+ *
+ * Usage: StaticAssetBuilder <static-dir>
+ */
+public class StaticAssetBuilder {
+
+    private static final List<String> DIRECTORIES = List.of("evidence", "js", "css");
+    private static final Pattern HASHED = Pattern.compile(".+\\.[0-9a-f]{12}\\.(json|js|css)(\\.gz|\\.br)?");
+    private static final Pattern ASSET = Pattern.compile("[^.]+\\.(json|js|css)");
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: StaticAssetBuilder <static-dir>");
+            System.exit(2);
+        }
+        Path root = Paths.get(args[0]);
+        boolean brotli = brotliInstalled();
+        long start = System.currentTimeMillis();
+
+        Map<String, String> manifest = new TreeMap<>();
+        long plain = 0;
+        long gzipped = 0;
+        for (String directory : DIRECTORIES) {
+            Path dir = root.resolve(directory);
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            for (Path file : list(dir)) {
+                String name = file.getFileName().toString();
+                if (HASHED.matcher(name).matches()) {
+                    Files.delete(file);
+                }
+            }
+            for (Path file : list(dir)) {
+                String name = file.getFileName().toString();
+                if (!ASSET.matcher(name).matches()) {
+                    continue;
+                }
+                byte[] content = Files.readAllBytes(file);
+                int dot = name.lastIndexOf('.');
+                String hashedName = name.substring(0, dot) + "." + hash(content) + name.substring(dot);
+                Path hashed = dir.resolve(hashedName);
+                Files.write(hashed, content);
+                byte[] gzip = gzip(content);
+                Files.write(dir.resolve(hashedName + ".gz"), gzip);
+                if (brotli) {
+                    brotli(hashed, dir.resolve(hashedName + ".br"));
+                }
+                manifest.put(directory + "/" + name, directory + "/" + hashedName);
+                plain += content.length;
+                gzipped += gzip.length;
+            }
+        }
+
+        StringBuilder json = new StringBuilder("{\n");
+        int n = 0;
+        for (Map.Entry<String, String> entry : manifest.entrySet()) {
+            json.append("  \"").append(entry.getKey()).append("\": \"").append(entry.getValue()).append('"')
+                    .append(++n < manifest.size() ? ",\n" : "\n");
+        }
+        json.append("}\n");
+        Files.writeString(root.resolve("asset-manifest.json"), json, StandardCharsets.UTF_8);
+
+        int pages = 0;
+        for (Path page : list(root)) {
+            if (page.getFileName().toString().endsWith(".html") && rewrite(page, manifest)) {
+                pages++;
+            }
+        }
+        System.out.println("StaticAssetBuilder: " + manifest.size() + " filer (" + plain / 1024 + " KB, gzip "
+                + gzipped / 1024 + " KB" + (brotli ? ", med brotli" : ", uten brotli") + "), " + pages
+                + " sider oppdatert, " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // Bytter src="js/app.js" (også ./js/app.js og et tidligere hashet navn) med det hashede navnet
+    private static boolean rewrite(Path page, Map<String, String> manifest) throws IOException {
+        String html = Files.readString(page, StandardCharsets.UTF_8);
+        String result = html;
+        for (Map.Entry<String, String> entry : manifest.entrySet()) {
+            String logical = entry.getKey();
+            int dot = logical.lastIndexOf('.');
+            Pattern reference = Pattern.compile("((?:src|href)=\"(?:\\./)?)" + Pattern.quote(logical.substring(0, dot))
+                    + "(?:\\.[0-9a-f]{12})?" + Pattern.quote(logical.substring(dot)) + "\"");
+            result = reference.matcher(result).replaceAll("$1" + Matcher.quoteReplacement(entry.getValue()) + "\"");
+        }
+        if (result.equals(html)) {
+            return false;
+        }
+        Files.writeString(page, result, StandardCharsets.UTF_8);
+        return true;
+    }
+
+    private static List<Path> list(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(Files::isRegularFile).sorted().toList();
+        }
+    }
+
+    private static String hash(byte[] content) throws NoSuchAlgorithmException {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content), 0, 6);
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 3 + 64);
+        try (OutputStream gzip = new GZIPOutputStream(bytes) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(content);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static boolean brotliInstalled() {
+        try {
+            return new ProcessBuilder("brotli", "--version").redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start().waitFor() == 0;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    private static void brotli(Path in, Path out) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder("brotli", "--best", "--force", "--output=" + out, in.toString())
+                .inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IOException("brotli feilet for " + in);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package msit.apologetikk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Full rebuild of all averages from the result store, and the incremental path used for every submission: folding
+ * one result into a variant, merging variants and building the "All" average.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AggregationBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Store {
+
+        @Param({"1000", "100000", "1000000"})
+        public int results;
+
+        FileResultStore store;
+        AverageCalculator calculator;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            store = new FileResultStore(BenchmarkData.results(results));
+            store.open();
+            calculator = new AverageCalculator(store);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            calculator.stopBackgroundJob();
+            store.close();
+        }
+    }
+
+    // Én variant med 1000 resultater, og et nytt resultat som skal foldes inn
+    @State(Scope.Thread)
+    public static class Variant {
+
+        BenchmarkData.Hypothesis hypothesis;
+        HypothesisCatalog.Hypothesis catalogEntry;
+        AverageAccumulator accumulator;
+        List<AverageAccumulator> variants;
+        JsonNode[] incoming;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            hypothesis = BenchmarkData.hypotheses().get(0);
+            catalogEntry = new HypothesisCatalog().get(hypothesis.name());
+            Random random = new Random(42);
+            variants = new ArrayList<>();
+            for (String denomination : BenchmarkData.DENOMINATIONS) {
+                AverageAccumulator variant = new AverageAccumulator();
+                for (int i = 0; i < 1000; i++) {
+                    variant.add(BenchmarkData.result(hypothesis, denomination, random));
+                }
+                variants.add(variant);
+            }
+            accumulator = new AverageAccumulator(variants.get(0));
+            incoming = new JsonNode[1024];
+            for (int i = 0; i < incoming.length; i++) {
+                incoming[i] = BenchmarkData.result(hypothesis, BenchmarkData.DENOMINATIONS.get(0), random);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public void fullRebuild(Store store) {
+        store.calculator.run();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public AverageAccumulator addResult(Variant variant) {
+        variant.accumulator.add(variant.incoming[variant.next++ & (variant.incoming.length - 1)]);
+        return variant.accumulator;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public AverageAccumulator mergeVariants(Variant variant) {
+        AverageAccumulator merged = new AverageAccumulator(variant.variants.get(0));
+        merged.merge(variant.variants.get(1));
+        return merged;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Average averageOfVariants(Variant variant) {
+        return AverageAccumulator.averageOfVariants(variant.variants, variant.catalogEntry);
+    }
+}
@@ -0,0 +1,124 @@
+package msit.apologetikk;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/*
+ * The read endpoints, called directly on the controller (no HTTP): GET /api/average with and without a cached (gzipped)
+ * response, GET /api/average with three denomination groups, and GET /api/results/{uuid} for random ids. The averages are published by a full rebuild during setup, which
+ * also writes them to data/ in the working directory.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ApiBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int results;
+
+    private FileResultStore store;
+    private AverageCalculator calculator;
+    private AverageCache cache;
+    private API api;
+    private String hypothesis;
+    private String[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path root = BenchmarkData.results(results);
+        store = new FileResultStore(root);
+        store.open();
+        HypothesisCatalog catalog = new HypothesisCatalog();
+        AverageSnapshots snapshots = new AverageSnapshots();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        calculator = new AverageCalculator(store, catalog, snapshots, 0, 0, 0, 90, false, new ReadPriority(0, registry),
+                SharedPartials.disabled(), registry);
+        calculator.run();
+        cache = new AverageCache(calculator, 64, registry);
+        api = new API(calculator, store, new ResultWriter(store, "async", 1, 1, false, registry), cache, catalog,
+                new AverageStream(calculator, cache, 1, 0, 0, 0, 0, registry), snapshots,
+                new ResultExport(store, catalog, 1, 3_600_000, registry), registry);
+        hypothesis = BenchmarkData.hypotheses().get(0).name();
+
+        // Et tilfeldig utvalg av id-ene som finnes i datasettet
+        List<String> all = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(root, 3)) {
+            walk.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(".json"))
+                    .forEach(name -> all.add(name.substring(0, name.length() - ".json".length())));
+        }
+        Collections.shuffle(all, new Random(42));
+        ids = all.subList(0, Math.min(4096, all.size())).toArray(new String[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        calculator.stopBackgroundJob();
+        store.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public ResponseEntity<?> getAveragesCached() {
+        return api.getAverages(hypothesis, null, null, "gzip, deflate");
+    }
+
+    @Benchmark
+    public ResponseEntity<?> getAveragesUncached() {
+        cache.invalidate(hypothesis);
+        return api.getAverages(hypothesis, null, null, null);
+    }
+
+    @Benchmark
+    public ResponseEntity<?> getAverageGroups() {
+        return api.getAverages(hypothesis, "christian,non-christian,Atheist+Agnostic", null, null);
+    }
+
+    @Benchmark
+    public ResponseEntity<?> getAverageWindow() {
+        return api.getAverages(hypothesis, "christian,non-christian", 30, null);
+    }
+
+    @Benchmark
+    public ResponseEntity<?> getDistributions() {
+        return api.getDistributions(hypothesis, "all", 10);
+    }
+
+    @Benchmark
+    public ResponseEntity<?> getResultsById(Cursor cursor) {
+        String id = ids[cursor.next++ % ids.length];
+        return api.getResultsById(id, new ServletWebRequest(new MockHttpServletRequest("GET", "/api/results/" + id)));
+    }
+}
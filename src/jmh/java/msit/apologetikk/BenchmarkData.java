@@ -0,0 +1,158 @@
+package msit.apologetikk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/*
+ * Synthetic result data for the benchmarks. Results are generated from the real hypotheses in static/evidence/*.json
+ * and look like what bayes.html posts: the same select values for percentages and weights, evidences answered in order
+ * until the user stops, and some evidences disregarded. Denominations are skewed so a few variants get most results.
+ *
+ * The data is written in the file store layout under <jmh.data.dir>/results-<count>/ and reused by later runs. The
+ * generator is seeded with the count, so the same count always gives the same data.
+ */
+final class BenchmarkData {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String READY = "READY";
+
+    // Som i bayes.html
+    private static final int[] PCT_VALUES = {1, 10, 25, 40, 50, 60, 75, 90, 100};
+    private static final int[] WEIGHT_VALUES = {25, 50, 50, 50, 75, 100};
+
+    // Rekkefølgen gir populariteten - de første får flest resultater
+    static final List<String> DENOMINATIONS = List.of(
+            "Catholic", "Non-denominational", "Evangelical", "Lutheran", "Atheist", "Baptist",
+            "Reformed", "Agnostic", "Anglican", "Methodist", "Eastern-Orthodox", "Other",
+            "Adventist", "Spiritual", "Oriental-Orthodox", "LDS", "JW", "Jewish",
+            "Muslim", "New-Age", "Hindu", "Buddhist"
+    );
+
+    record Hypothesis(String name, String title, List<JsonNode> evidence) {
+    }
+
+    private BenchmarkData() {
+    }
+
+    // Returns the data directory with count generated results, generating it the first time
+    static synchronized Path results(int count) throws IOException {
+        Path root = Paths.get(System.getProperty("jmh.data.dir", "target/jmh/jmh-data")).resolve("results-" + count);
+        if (Files.exists(root.resolve(READY))) {
+            return root;
+        }
+        deleteTree(root); // Rester etter en avbrutt generering
+        generate(root, count);
+        Files.createFile(root.resolve(READY));
+        return root;
+    }
+
+    static List<Hypothesis> hypotheses() throws IOException {
+        Resource[] resources = new PathMatchingResourcePatternResolver().getResources("classpath:static/evidence/*.json");
+        List<Hypothesis> hypotheses = new ArrayList<>();
+        for (Resource resource : resources) {
+            String filename = resource.getFilename();
+            if (filename == null || StaticAssets.isHashed(filename)) {
+                continue; // Hashede kopier fra byggingen, se StaticAssetBuilder
+            }
+            JsonNode json;
+            try (InputStream in = resource.getInputStream()) {
+                json = MAPPER.readTree(in);
+            }
+            List<JsonNode> evidence = new ArrayList<>();
+            json.path("evidence").forEach(evidence::add);
+            hypotheses.add(new Hypothesis(filename.substring(0, filename.length() - ".json".length()), json.path("title").asText(), evidence));
+        }
+        hypotheses.sort(Comparator.comparing(Hypothesis::name));
+        return hypotheses;
+    }
+
+    // One result as bayes.html would post it
+    static ObjectNode result(Hypothesis hypothesis, String denomination, Random random) {
+        ObjectNode result = MAPPER.createObjectNode();
+        int aprioriPct = PCT_VALUES[random.nextInt(PCT_VALUES.length - 1)];
+        result.put("name", hypothesis.name());
+        result.put("title", hypothesis.title());
+        result.put("denomination", denomination);
+        result.put("aprioriPct", aprioriPct);
+
+        // Evidensene besvares i rekkefølge, og de fleste går gjennom alle
+        int answered = random.nextInt(4) == 0 ? 1 + random.nextInt(hypothesis.evidence().size()) : hypothesis.evidence().size();
+        double logOdds = Math.log(aprioriPct / (100.0 - aprioriPct));
+        ArrayNode evidence = result.putArray("evidence");
+        for (JsonNode hypEv : hypothesis.evidence().subList(0, answered)) {
+            ObjectNode ev = evidence.addObject();
+            ev.put("id", hypEv.path("id").asInt());
+            if (hypEv.has("head")) {
+                ev.put("head", hypEv.path("head").asText());
+            }
+            if (random.nextInt(8) == 0) {
+                ev.putNull("pehPct");
+                ev.putNull("penhPct");
+                ev.put("weight", 0);
+                continue;
+            }
+            int peh = PCT_VALUES[random.nextInt(PCT_VALUES.length)];
+            int penh = PCT_VALUES[random.nextInt(PCT_VALUES.length)];
+            int weight = WEIGHT_VALUES[random.nextInt(WEIGHT_VALUES.length)];
+            ev.put("pehPct", peh);
+            ev.put("penhPct", penh);
+            ev.put("weight", weight);
+            logOdds += weight / 50.0 * Math.log(Math.max(peh, 0.5) / Math.max(penh, 0.5));
+        }
+        double posterior = 1 / (1 + Math.exp(-logOdds));
+        result.put("posteriorPct", Math.round(posterior * 10000) / 100.0);
+        return result;
+    }
+
+    static String denomination(Random random) {
+        // Kvadrering av en uniform verdi gir en skjev fordeling mot starten av listen
+        double r = random.nextDouble();
+        return DENOMINATIONS.get((int) (r * r * DENOMINATIONS.size()));
+    }
+
+    private static void generate(Path root, int count) throws IOException {
+        List<Hypothesis> hypotheses = hypotheses();
+        Random random = new Random(count);
+        Set<Path> created = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            Hypothesis hypothesis = hypotheses.get(random.nextInt(hypotheses.size()));
+            String denomination = denomination(random);
+            Path dir = root.resolve(hypothesis.name()).resolve(denomination);
+            if (created.add(dir)) {
+                Files.createDirectories(dir);
+            }
+            UUID id = new UUID(random.nextLong(), random.nextLong());
+            Files.write(dir.resolve(id + ".json"), MAPPER.writeValueAsBytes(result(hypothesis, denomination, random)));
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(root)) {
+            for (Path path : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package msit.apologetikk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/*
+ * Several instances on one machine sharing their partial aggregates (see SharedPartials). Starts <nodes> servers with
+ * the given java arguments, each in <base-dir>/node-<i> with its own data/ and port <first-port> + i, all with
+ * <base-dir>/shared as apologetikk.cluster.shared-dir. Admission control and warm-up are turned off for the test.
+ * Then <concurrency> clients post <results> generated results, spread round-robin over the nodes, and it measures
+ *
+ *   submit  - results per second over all nodes
+ *   merged  - from the last submit until every node's "All" count for every hypothesis is the number posted for it
+ *
+ * The node directories and shared/ are emptied first, and the servers are stopped afterwards. Compare e.g. 1 and 3
+ * nodes with -jar target/apologetikk-1.0-SNAPSHOT.jar (on a machine with at least as many cores as nodes).
+ *
+ * Usage: ClusterTest <base-dir> <nodes> <first-port> <results> <concurrency> <java arguments...>
+ */
+public class ClusterTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final long MERGE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(120);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 6) {
+            System.err.println("Usage: ClusterTest <base-dir> <nodes> <first-port> <results> <concurrency> <java arguments...>");
+            System.exit(2);
+        }
+        Path base = Paths.get(args[0]).toAbsolutePath();
+        int nodes = Integer.parseInt(args[1]);
+        int firstPort = Integer.parseInt(args[2]);
+        int results = Integer.parseInt(args[3]);
+        int concurrency = Integer.parseInt(args[4]);
+        List<String> javaArgs = Arrays.asList(args).subList(5, args.length);
+
+        Path shared = base.resolve("shared");
+        deleteTree(shared);
+        List<String> urls = new ArrayList<>();
+        List<Process> servers = new ArrayList<>();
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        try {
+            for (int i = 0; i < nodes; i++) {
+                Path workDir = base.resolve("node-" + i);
+                deleteTree(workDir);
+                Files.createDirectories(workDir);
+                List<String> command = new ArrayList<>();
+                command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+                command.addAll(javaArgs);
+                command.add("--server.port=" + (firstPort + i));
+                command.add("--apologetikk.cluster.shared-dir=" + shared);
+                command.add("--apologetikk.cluster.node-id=node-" + i);
+                command.add("--apologetikk.admission.enabled=false");
+                command.add("--apologetikk.warmup.enabled=false");
+                servers.add(new ProcessBuilder(command)
+                        .directory(workDir.toFile())
+                        .redirectErrorStream(true)
+                        .redirectOutput(new File(workDir.toFile(), "cluster-test.log"))
+                        .start());
+                urls.add("http://localhost:" + (firstPort + i));
+            }
+            for (int i = 0; i < nodes; i++) {
+                awaitReady(client, urls.get(i), servers.get(i), i);
+            }
+            System.out.println("ClusterTest: " + nodes + " noder klare, " + concurrency + " klienter sender " + results + " resultater");
+
+            List<BenchmarkData.Hypothesis> hypotheses = BenchmarkData.hypotheses();
+            Map<String, LongAdder> posted = new ConcurrentHashMap<>();
+            LongAdder failed = new LongAdder();
+            AtomicInteger next = new AtomicInteger();
+            long start = System.nanoTime();
+            ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+            for (int c = 0; c < concurrency; c++) {
+                long seed = c;
+                workers.execute(() -> {
+                    Random random = new Random(seed);
+                    int n;
+                    while ((n = next.getAndIncrement()) < results) {
+                        BenchmarkData.Hypothesis hypothesis = hypotheses.get(random.nextInt(hypotheses.size()));
+                        HttpRequest request;
+                        try {
+                            request = HttpRequest.newBuilder(URI.create(urls.get(n % nodes) + "/api/results"))
+                                    .header("Content-Type", "application/json")
+                                    .POST(HttpRequest.BodyPublishers.ofByteArray(MAPPER.writeValueAsBytes(
+                                            BenchmarkData.result(hypothesis, BenchmarkData.denomination(random), random))))
+                                    .build();
+                            if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() / 100 == 2) {
+                                posted.computeIfAbsent(hypothesis.name(), k -> new LongAdder()).increment();
+                            } else {
+                                failed.increment();
+                            }
+                        } catch (IOException e) {
+                            failed.increment();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                });
+            }
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.HOURS);
+            long submitted = System.nanoTime();
+            long stored = posted.values().stream().mapToLong(LongAdder::sum).sum();
+            System.out.printf("submit: %d lagret, %d feilet, %.0f resultater/s%n", stored, failed.sum(),
+                    stored / ((submitted - start) / 1e9));
+
+            Map<String, Long> expected = new TreeMap<>();
+            posted.forEach((hypothesis, count) -> expected.put(hypothesis, count.sum()));
+            for (int i = 0; i < nodes; i++) {
+                long missing = awaitMerged(client, urls.get(i), expected, submitted);
+                if (missing == 0) {
+                    System.out.printf("merged: node-%d hadde alle resultatene %.0f ms etter siste innsending%n", i,
+                            (System.nanoTime() - submitted) / 1e6);
+                } else {
+                    System.out.printf("merged: node-%d manglet %d resultater etter %d s%n", i, missing,
+                            TimeUnit.NANOSECONDS.toSeconds(MERGE_TIMEOUT_NANOS));
+                }
+            }
+        } finally {
+            for (Process server : servers) {
+                server.destroy();
+            }
+            for (Process server : servers) {
+                server.waitFor(30, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static void awaitReady(HttpClient client, String base, Process server, int node) throws Exception {
+        HttpRequest readiness = HttpRequest.newBuilder(URI.create(base + "/actuator/health/readiness")).build();
+        while (true) {
+            if (!server.isAlive()) {
+                throw new IllegalStateException("node-" + node + " stoppet under oppstart - se node-" + node + "/cluster-test.log");
+            }
+            try {
+                if (client.send(readiness, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException notYet) {
+                // Porten er ikke åpen ennå
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    // Venter til "All" har riktig antall for hver hypotese på noden. 0 når den har det, ellers antallet som manglet
+    private static long awaitMerged(HttpClient client, String base, Map<String, Long> expected, long from) throws Exception {
+        long missing = 0;
+        while (System.nanoTime() - from < MERGE_TIMEOUT_NANOS) {
+            missing = 0;
+            for (Map.Entry<String, Long> entry : expected.entrySet()) {
+                missing += entry.getValue() - allCount(client, base, entry.getKey());
+            }
+            if (missing == 0) {
+                return 0;
+            }
+            Thread.sleep(20);
+        }
+        return missing;
+    }
+
+    private static long allCount(HttpClient client, String base, String hypothesis) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/api/average?hypothesis=" + hypothesis)).build();
+        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            return 0;
+        }
+        for (JsonNode average : MAPPER.readTree(response.body()).path("averages")) {
+            if ("All".equals(average.path("denomination").asText())) {
+                return average.path("count").asLong();
+            }
+        }
+        return 0;
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
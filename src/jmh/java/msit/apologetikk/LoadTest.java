@@ -0,0 +1,196 @@
+package msit.apologetikk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Closed-loop HTTP load against a running server, for comparing platform and virtual request threads
+ * (spring.threads.virtual.enabled). Each of <concurrency> clients repeatedly picks one of
+ *
+ *   average - GET /api/average?hypothesis=... for a random hypothesis
+ *   result  - GET /api/results/{uuid} for a result this run has posted
+ *   submit  - POST /api/results with a generated result (writePercent of the requests)
+ *
+ * and waits for the response before sending the next. After a warm-up of a fifth of the duration, throughput,
+ * latency percentiles and response statuses are printed per operation.
+ *
+ * Usage: LoadTest <base-url> [concurrency=200] [seconds=30] [writePercent=10]
+ */
+public class LoadTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String[] OPERATIONS = {"average", "result", "submit"};
+
+    private static final AtomicReference<IOException> firstError = new AtomicReference<>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LoadTest <base-url> [concurrency=200] [seconds=30] [writePercent=10]");
+            System.exit(2);
+        }
+        String baseUrl = args[0].replaceAll("/+$", "");
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        int writePercent = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        List<BenchmarkData.Hypothesis> hypotheses = BenchmarkData.hypotheses();
+        ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+
+        Map<String, Stats> stats = new TreeMap<>();
+        for (String operation : OPERATIONS) {
+            stats.put(operation, new Stats());
+        }
+        List<String> postedIds = new CopyOnWriteArrayList<>();
+        long startNanos = System.nanoTime();
+        long measureFrom = startNanos + TimeUnit.SECONDS.toNanos(seconds) / 5;
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(seconds) + (measureFrom - startNanos);
+
+        System.out.println("LoadTest: " + concurrency + " klienter mot " + baseUrl + " i " + seconds + " s (+ oppvarming), "
+                + writePercent + " % skriving");
+        for (int i = 0; i < concurrency; i++) {
+            workers.execute(() -> {
+                Random random = ThreadLocalRandom.current();
+                while (System.nanoTime() < endNanos) {
+                    String operation;
+                    HttpRequest request;
+                    if (random.nextInt(100) < writePercent) {
+                        operation = "submit";
+                        BenchmarkData.Hypothesis hypothesis = hypotheses.get(random.nextInt(hypotheses.size()));
+                        request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/results"))
+                                .header("Content-Type", "application/json")
+                                .POST(HttpRequest.BodyPublishers.ofByteArray(json(BenchmarkData.result(hypothesis,
+                                        BenchmarkData.denomination(random), random))))
+                                .build();
+                    } else if (!postedIds.isEmpty() && random.nextBoolean()) {
+                        operation = "result";
+                        String id = postedIds.get(random.nextInt(postedIds.size()));
+                        request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/results/" + id)).GET().build();
+                    } else {
+                        operation = "average";
+                        String hypothesis = hypotheses.get(random.nextInt(hypotheses.size())).name();
+                        request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/average?hypothesis=" + hypothesis)).GET().build();
+                    }
+
+                    long sent = System.nanoTime();
+                    String status;
+                    try {
+                        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                        status = String.valueOf(response.statusCode());
+                        if (operation.equals("submit") && response.statusCode() / 100 == 2 && postedIds.size() < 10_000) {
+                            postedIds.add(MAPPER.readTree(response.body()).path("id").asText());
+                        }
+                    } catch (IOException e) {
+                        status = e.getClass().getSimpleName();
+                        firstError.compareAndSet(null, e);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long received = System.nanoTime();
+                    if (sent >= measureFrom && received <= endNanos) {
+                        stats.get(operation).record(received - sent, status);
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(seconds * 3L + 60, TimeUnit.SECONDS);
+
+        double measuredSeconds = (endNanos - measureFrom) / 1e9;
+        long total = 0;
+        System.out.printf("%-8s %10s %10s %10s %10s %10s %10s  %s%n", "", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "antall", "status");
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            Stats s = entry.getValue();
+            long[] latencies = s.sorted();
+            total += latencies.length;
+            System.out.printf("%-8s %10.0f %10.2f %10.2f %10.2f %10.2f %10d  %s%n", entry.getKey(),
+                    latencies.length / measuredSeconds, millis(latencies, 0.50), millis(latencies, 0.99),
+                    millis(latencies, 0.999), millis(latencies, 1.0), latencies.length, s.statusCounts());
+        }
+        System.out.printf("%-8s %10.0f%n", "totalt", total / measuredSeconds);
+        if (firstError.get() != null) {
+            System.out.println("Første feil: " + firstError.get());
+        }
+    }
+
+    private static byte[] json(JsonNode node) {
+        try {
+            return MAPPER.writeValueAsBytes(node);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static double millis(long[] sortedNanos, double quantile) {
+        if (sortedNanos.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int) Math.min(sortedNanos.length - 1, Math.ceil(quantile * sortedNanos.length) - 1);
+        return sortedNanos[Math.max(0, index)] / 1e6;
+    }
+
+    // Latenser og statuser for én operasjon. Hver arbeider legger i sin egen liste, så registreringen ikke konkurrerer
+    private static final class Stats {
+        private final List<long[]> chunks = new CopyOnWriteArrayList<>();
+        private final ThreadLocal<long[]> current = new ThreadLocal<>();
+        private final ThreadLocal<int[]> used = ThreadLocal.withInitial(() -> new int[1]);
+        private final Map<String, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        void record(long nanos, String status) {
+            long[] chunk = current.get();
+            int[] n = used.get();
+            if (chunk == null || n[0] == chunk.length) {
+                chunk = new long[4096];
+                Arrays.fill(chunk, -1);
+                chunks.add(chunk);
+                current.set(chunk);
+                n[0] = 0;
+            }
+            chunk[n[0]++] = nanos;
+            statuses.computeIfAbsent(status, k -> new LongAdder()).increment();
+        }
+
+        long[] sorted() {
+            List<Long> all = new ArrayList<>();
+            for (long[] chunk : chunks) {
+                for (long nanos : chunk) {
+                    if (nanos >= 0) {
+                        all.add(nanos);
+                    }
+                }
+            }
+            return all.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+
+        Map<String, Long> statusCounts() {
+            Map<String, Long> counts = new TreeMap<>();
+            statuses.forEach((status, count) -> counts.put(status, count.sum()));
+            return counts;
+        }
+    }
+}
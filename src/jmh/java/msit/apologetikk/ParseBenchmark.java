@@ -0,0 +1,76 @@
+package msit.apologetikk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cost of reading one stored result file into a variant accumulator during a full rebuild:
+ *
+ *   treeAndBind - readTree + convertValue to Average, as the rebuild did before AverageAccumulator
+ *   tree        - readTree + AverageAccumulator.add(JsonNode), still used for results posted to the API
+ *   streaming   - AverageAccumulator.add(byte[]), what the rebuild uses now
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private byte[][] files;
+    private int next;
+    private AverageAccumulator accumulator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<BenchmarkData.Hypothesis> hypotheses = BenchmarkData.hypotheses();
+        Random random = new Random(42);
+        files = new byte[1024][];
+        for (int i = 0; i < files.length; i++) {
+            BenchmarkData.Hypothesis hypothesis = hypotheses.get(random.nextInt(hypotheses.size()));
+            files[i] = MAPPER.writeValueAsBytes(BenchmarkData.result(hypothesis, BenchmarkData.denomination(random), random));
+        }
+        accumulator = new AverageAccumulator();
+    }
+
+    private byte[] nextFile() {
+        return files[next++ & (files.length - 1)];
+    }
+
+    @Benchmark
+    public Average treeAndBind() throws IOException {
+        JsonNode tree = MAPPER.readTree(nextFile());
+        return MAPPER.convertValue(tree, Average.class);
+    }
+
+    @Benchmark
+    public AverageAccumulator tree() throws IOException {
+        accumulator.add(MAPPER.readTree(nextFile()));
+        return accumulator;
+    }
+
+    @Benchmark
+    public AverageAccumulator streaming() throws IOException {
+        accumulator.add(nextFile());
+        return accumulator;
+    }
+}
@@ -0,0 +1,167 @@
+package msit.apologetikk;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/*
+ * Time to first good p99 after startup. Starts the server with the given java arguments in <work-dir> (which should
+ * have a data/ directory with results), and measures
+ *
+ *   ready     - from process start until /actuator/health/readiness answers 200
+ *   first p99 - from process start until the first 500 ms window where p99 of GET /api/average is at most <p99-ms>
+ *
+ * Load starts as soon as the server is ready, with <concurrency> closed-loop clients for <seconds> seconds, and the p99
+ * of every window is printed. The server is stopped afterwards. Compare e.g.
+ *
+ *   -jar target/apologetikk-1.0-SNAPSHOT.jar --apologetikk.warmup.enabled=false
+ *   -jar target/apologetikk-1.0-SNAPSHOT.jar
+ *   -XX:SharedArchiveFile=target/fast-startup/application.jsa -Dspring.aot.enabled=true -jar target/fast-startup/apologetikk-1.0-SNAPSHOT.jar
+ *
+ * Usage: StartupTest <work-dir> <port> <p99-ms> <seconds> <concurrency> <java arguments...>
+ */
+public class StartupTest {
+
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 6) {
+            System.err.println("Usage: StartupTest <work-dir> <port> <p99-ms> <seconds> <concurrency> <java arguments...>");
+            System.exit(2);
+        }
+        Path workDir = Paths.get(args[0]).toAbsolutePath();
+        int port = Integer.parseInt(args[1]);
+        double targetMillis = Double.parseDouble(args[2]);
+        int seconds = Integer.parseInt(args[3]);
+        int concurrency = Integer.parseInt(args[4]);
+        String base = "http://localhost:" + port;
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(Arrays.asList(args).subList(5, args.length));
+        command.add("--server.port=" + port);
+        List<String> hypotheses = hypotheses(workDir);
+
+        long start = System.nanoTime();
+        Process server = new ProcessBuilder(command)
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(new File(workDir.toFile(), "startup-test.log"))
+                .start();
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+        try {
+            long ready = awaitReady(client, base, server);
+            System.out.printf("ready etter %.0f ms%n", (ready - start) / 1e6);
+
+            long end = ready + TimeUnit.SECONDS.toNanos(seconds);
+            ConcurrentLinkedQueue<long[]> samples = new ConcurrentLinkedQueue<>(); // {sendt, latens}
+            ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+            for (int i = 0; i < concurrency; i++) {
+                workers.execute(() -> {
+                    while (System.nanoTime() < end) {
+                        String hypothesis = hypotheses.get(ThreadLocalRandom.current().nextInt(hypotheses.size()));
+                        HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/api/average?hypothesis=" + hypothesis))
+                                .header("Accept-Encoding", "gzip").build();
+                        long sent = System.nanoTime();
+                        try {
+                            client.send(request, HttpResponse.BodyHandlers.discarding());
+                        } catch (IOException e) {
+                            continue;
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        samples.add(new long[]{sent, System.nanoTime() - sent});
+                    }
+                });
+            }
+            workers.shutdown();
+            workers.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+
+            int windows = (int) ((end - ready + WINDOW_NANOS - 1) / WINDOW_NANOS);
+            List<List<Long>> byWindow = new ArrayList<>();
+            for (int i = 0; i < windows; i++) {
+                byWindow.add(new ArrayList<>());
+            }
+            for (long[] sample : samples) {
+                int window = (int) ((sample[0] - ready) / WINDOW_NANOS);
+                if (window >= 0 && window < windows) {
+                    byWindow.get(window).add(sample[1]);
+                }
+            }
+            Double firstGood = null;
+            System.out.printf("%10s %8s %10s %10s%n", "fra start", "antall", "p50 ms", "p99 ms");
+            for (int i = 0; i < windows; i++) {
+                long[] latencies = byWindow.get(i).stream().mapToLong(Long::longValue).sorted().toArray();
+                double fromStart = (ready - start + i * WINDOW_NANOS) / 1e6;
+                double p99 = millis(latencies, 0.99);
+                System.out.printf("%8.0f ms %8d %10.2f %10.2f%n", fromStart, latencies.length, millis(latencies, 0.50), p99);
+                if (firstGood == null && latencies.length > 0 && p99 <= targetMillis) {
+                    firstGood = fromStart + WINDOW_NANOS / 1e6;
+                }
+            }
+            System.out.println(firstGood == null
+                    ? "p99 kom aldri under " + targetMillis + " ms"
+                    : String.format("første vindu med p99 <= %.0f ms var ferdig %.0f ms etter start", targetMillis, firstGood));
+        } finally {
+            server.destroy();
+            server.waitFor(30, TimeUnit.SECONDS);
+        }
+    }
+
+    private static long awaitReady(HttpClient client, String base, Process server) throws Exception {
+        HttpRequest readiness = HttpRequest.newBuilder(URI.create(base + "/actuator/health/readiness")).build();
+        while (true) {
+            if (!server.isAlive()) {
+                throw new IllegalStateException("Serveren stoppet under oppstart - se startup-test.log");
+            }
+            try {
+                if (client.send(readiness, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return System.nanoTime();
+                }
+            } catch (IOException notYet) {
+                // Porten er ikke åpen ennå
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    // Hypotesene som har publiserte gjennomsnitt i data/
+    private static List<String> hypotheses(Path workDir) throws IOException {
+        Path data = workDir.resolve("data");
+        List<String> names = new ArrayList<>();
+        if (Files.isDirectory(data)) {
+            try (Stream<Path> dirs = Files.list(data)) {
+                dirs.filter(d -> Files.isRegularFile(d.resolve("average.json")))
+                        .forEach(d -> names.add(d.getFileName().toString()));
+            }
+        }
+        if (names.isEmpty()) {
+            throw new IllegalStateException("Fant ingen data/<hypotese>/average.json i " + workDir);
+        }
+        return names;
+    }
+
+    private static double millis(long[] sortedNanos, double quantile) {
+        if (sortedNanos.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int) Math.min(sortedNanos.length - 1, Math.ceil(quantile * sortedNanos.length) - 1);
+        return sortedNanos[Math.max(0, index)] / 1e6;
+    }
+}
@@ -1,7 +1,15 @@
 package msit.apologetikk;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.RuntimeJsonMappingException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -9,24 +17,41 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Objects;
-import java.util.Optional;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiFunction;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
 
 @RestController
 @RequestMapping(value = "/api", produces = MediaType.APPLICATION_JSON_VALUE)
@@ -36,82 +61,426 @@ class API {
     private static final Path ROOT = Paths.get("data"); // => data
     private static final Pattern SAFE_SEG = Pattern.compile("[A-Za-z0-9._-]+");
 
+    // Resultater i /results/batch skrives og foldes inn i gjennomsnittene i bolker av denne størrelsen
+    private static final int BATCH_CHUNK = 1000;
+    private static final long BATCH_QUEUE_WAIT_MS = 30_000;
+
+    // Grenser for tidsvinduene i /average?days= og /average/monthly
+    private static final int MAX_WINDOW_DAYS = 3650;
+    private static final int MAX_MONTHS = 120;
+
+    private final AverageCalculator averageCalculator;
+    private final ResultStore resultStore;
+    private final ResultWriter resultWriter;
+    private final AverageCache averageCache;
+    private final HypothesisCatalog catalog;
+    private final AverageStream averageStream;
+    private final AverageSnapshots snapshots;
+    private final ResultExport resultExport;
+
+    private final MeterRegistry registry;
+    private final Timer averageLookup;
+
+    API(AverageCalculator averageCalculator, ResultStore resultStore, ResultWriter resultWriter, AverageCache averageCache,
+        HypothesisCatalog catalog, AverageStream averageStream, AverageSnapshots snapshots, ResultExport resultExport,
+        MeterRegistry registry) {
+        this.averageCalculator = averageCalculator;
+        this.resultStore = resultStore;
+        this.resultWriter = resultWriter;
+        this.averageCache = averageCache;
+        this.catalog = catalog;
+        this.averageStream = averageStream;
+        this.snapshots = snapshots;
+        this.resultExport = resultExport;
+        this.registry = registry;
+        this.averageLookup = Timer.builder("apologetikk.average.lookup")
+                .description("Finding the /api/average response, from the cache or the latest snapshot")
+                .register(registry);
+    }
+
 
     // Lag en ny GET-endpoint /api/average som tar en parameter "hypothesis" og så returnerer alle average.json for alle varianter av denne hypotesen
+    // Svaret er siste øyeblikksbilde fra AverageSnapshots (i minnet), og caches gzippet i AverageCache til det kommer et nytt.
+    // ETag er versjonen til øyeblikksbildet, og Spring svarer 304 på If-None-Match / If-Modified-Since.
+    // Med groups (f.eks. groups=christian,Atheist+Agnostic) gis i stedet gjennomsnitt for grupper av denominasjoner - se AverageRollup
+    // Med days (f.eks. days=30) gis gruppene (standard "all") for resultatene lagret de siste dagene (UTC), fra TimeBuckets
     @GetMapping("/average")
-    public ResponseEntity<?> getAverages(@RequestParam String hypothesis) {
-        Path hypPath = ROOT.resolve(hypothesis);
-        if (!Files.exists(hypPath) || !Files.isDirectory(hypPath))
+    public ResponseEntity<?> getAverages(@RequestParam String hypothesis,
+                                         @RequestParam(required = false) String groups,
+                                         @RequestParam(required = false) Integer days,
+                                         @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        if (!catalog.contains(hypothesis)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("status", "error", "message", "Unknown hypothesis"));
+        }
+        if (days != null) {
+            if (days < 1 || days > MAX_WINDOW_DAYS) {
+                return ResponseEntity.badRequest().body(Map.of("status", "error", "message", "days must be between 1 and " + MAX_WINDOW_DAYS));
+            }
+            long today = TimeBuckets.epochDay(System.currentTimeMillis());
+            return getAverageGroups(hypothesis, groups == null ? "all" : groups, false,
+                    (snapshot, parsed) -> AverageRollup.window(snapshot, catalog.get(hypothesis), parsed, days, today));
+        }
+        if (groups != null) {
+            return getAverageGroups(hypothesis, groups, true,
+                    (snapshot, parsed) -> AverageRollup.rollup(snapshot, catalog.get(hypothesis), parsed));
+        }
+        Timer.Sample lookup = Timer.start(registry);
+        AverageCache.Entry cached = averageCache.get(hypothesis, snapshots::get);
+        lookup.stop(averageLookup);
+        if (cached == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("status", "warn", "message", "No data published yet"));
+        }
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .cacheControl(CacheControl.noCache())
+                .lastModified(cached.lastModified());
+        if (StaticAssets.accepts(acceptEncoding, "gzip")) {
+            return ok.eTag(cached.gzipETag()).header(HttpHeaders.CONTENT_ENCODING, "gzip").body(cached.gzip());
+        }
+        return ok.eTag(cached.etag()).body(cached.json());
+    }
 
-        try (Stream<Path> walk = Files.walk(hypPath, 2)) {
-            // Finn alle filer som heter average.json
-            var averages = walk
-                    .filter(p -> p.getFileName() != null && p.getFileName().toString().equals("average.json"))
-                    .map(p -> {
-                        try {
-                            return MAPPER.readTree(p.toFile());
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }).toList();
-
-            List<JsonNode> sortedAverages = sortAverages(averages);
+    // Gjennomsnitt per kalendermåned (UTC) for gruppene, eldste først - se AverageRollup.monthly
+    @GetMapping("/average/monthly")
+    public ResponseEntity<?> getMonthlyAverages(@RequestParam String hypothesis,
+                                                @RequestParam(defaultValue = "all") String groups,
+                                                @RequestParam(defaultValue = "12") int months) {
+        if (!catalog.contains(hypothesis)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("status", "error", "message", "Unknown hypothesis"));
+        }
+        if (months < 1 || months > MAX_MONTHS) {
+            return ResponseEntity.badRequest().body(Map.of("status", "error", "message", "months must be between 1 and " + MAX_MONTHS));
+        }
+        long today = TimeBuckets.epochDay(System.currentTimeMillis());
+        return getAverageGroups(hypothesis, groups, false,
+                (snapshot, parsed) -> AverageRollup.monthly(snapshot, catalog.get(hypothesis), parsed, months, today));
+    }
 
+    // Fordelingen (min, persentiler, maks og histogram med bins søyler) av prosentene for gruppene, standard "all" -
+    // se PercentHistogram. Slås sammen fra histogrammene i delsummene, uten å lese resultatene
+    @GetMapping("/average/distribution")
+    public ResponseEntity<?> getDistributions(@RequestParam String hypothesis,
+                                              @RequestParam(defaultValue = "all") String groups,
+                                              @RequestParam(defaultValue = "10") int bins) {
+        if (!catalog.contains(hypothesis)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("status", "error", "message", "Unknown hypothesis"));
+        }
+        if (bins < 1 || bins > PercentHistogram.BINS) {
+            return ResponseEntity.badRequest().body(Map.of("status", "error", "message", "bins must be between 1 and " + PercentHistogram.BINS));
+        }
+        return getAverageGroups(hypothesis, groups, true,
+                (snapshot, parsed) -> AverageRollup.distributions(snapshot, catalog.get(hypothesis), parsed, bins));
+    }
 
-            Map<String, Object> sortedAverageMap = Map.of(
-                    "status", "ok",
-                    "hypothesis", hypothesis,
-                    "count", averages.size(),
-                    "averages", sortedAverages
-            );
-            return ResponseEntity.ok(sortedAverageMap);
-        } catch (IOException io) {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of(
-                    "status", "error",
-                    "message", io.getMessage()
-            ));
+    // Gruppene slås sammen fra delsummene per denominasjon i siste øyeblikksbilde, uten å lese resultatene.
+    // Svar på tidsvinduer avhenger også av dagens dato, så de får ETag av innholdet i stedet for av versjonen
+    private ResponseEntity<?> getAverageGroups(String hypothesis, String groups, boolean versionETag,
+                                               BiFunction<AverageSnapshots.Snapshot, List<AverageRollup.Group>, Map<String, Object>> rollup) {
+        List<AverageRollup.Group> parsed;
+        try {
+            parsed = AverageRollup.parseGroups(groups);
+        } catch (IllegalArgumentException bad) {
+            return ResponseEntity.badRequest().body(Map.of("status", "error", "message", bad.getMessage()));
+        }
+        AverageSnapshots.Snapshot snapshot = snapshots.get(hypothesis);
+        if (snapshot == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("status", "warn", "message", "No data published yet"));
+        }
+        if (snapshot.partials() == null) { // Lastet fra average.json ved oppstart - gjenoppbyggingen er ikke ferdig ennå
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "5")
+                    .body(Map.of("status", "warn", "message", "Averages are being rebuilt"));
+        }
+        try {
+            // Samme JSON-format som average.json og resten av /api/average, ikke snake_case fra Spring sin ObjectMapper
+            byte[] json = MAPPER.writeValueAsBytes(rollup.apply(snapshot, parsed));
+            return ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .cacheControl(CacheControl.noCache())
+                    .eTag(versionETag ? ETags.ofVersion(snapshot.version()) : ETags.of(json))
+                    .lastModified(snapshot.publishedAt())
+                    .body(json);
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("status", "error", "message", e.getMessage()));
         }
     }
 
+    // Server-Sent Events med hele /api/average-svaret (hendelse "average") hver gang gjennomsnittene for hypotesen endres,
+    // i stedet for at stats.html må spørre med jevne mellomrom. Se AverageStream.
+    // Returtypen er Object fordi Spring bare gjenkjenner en SseEmitter ut fra typen på verdien som returneres.
+    @GetMapping(value = "/average/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Object streamAverages(@RequestParam String hypothesis, HttpServletResponse response) {
+        if (!catalog.contains(hypothesis)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON)
+                    .body(Map.of("status", "error", "message", "Unknown hypothesis"));
+        }
+        try {
+            SseEmitter emitter = averageStream.subscribe(hypothesis, snapshots::get);
+            response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noStore().getHeaderValue());
+            response.setHeader("X-Accel-Buffering", "no"); // nginx skal ikke bufre strømmen
+            return emitter;
+        } catch (RejectedExecutionException full) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).contentType(MediaType.APPLICATION_JSON)
+                    .body(Map.of("status", "error", "message", full.getMessage()));
+        }
+    }
 
+    // Resultatet legges i skrivekøen til ResultWriter, og klienten får svar når det er skrevet (og fsync-et, avhengig av
+    // apologetikk.write.durability). Tråden som tok imot forespørselen blir ikke holdt mens vi venter på disken.
+    // Tiden til svaret er klart måles i apologetikk.results.submit, med HTTP-statusen som tag.
     @PostMapping(value = "/results", consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<Map<String, Object>> saveResults(@RequestBody JsonNode root) {
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> saveResults(@RequestBody JsonNode root) {
+        Timer.Sample sample = Timer.start(registry);
+        return submit(root).whenComplete((response, t) -> sample.stop(statusTimer("apologetikk.results.submit", response)));
+    }
+
+    private CompletableFuture<ResponseEntity<Map<String, Object>>> submit(JsonNode root) {
         try {
-            Files.createDirectories(ROOT);
-            boolean DEV = new File(ROOT + "/DEV").exists();
-            String name = root.path("name").textValue();
+            String url = getResultsUrl();
+            String name = getHypothesisName(root);
             String denomination = getSanitizedField(root, "denomination");
-            String id = UUID.randomUUID().toString();
-            Path dir = ROOT.resolve(name).resolve(denomination);
-            Files.createDirectories(dir);
-            Path file = dir.resolve(id + ".json");
-            MAPPER.writeValue(file.toFile(), root);
-            String url = "https://reasonableroad.com/results.html?";
-            if (DEV) url = "http://localhost:8080/results.html?";
+            UUID uuid = UUID.randomUUID();
+            String id = uuid.toString();
 
             URI href = URI.create(url + "name=" + name + "&id=" + id);
-            AverageCalculator.init();
-            return ResponseEntity.status(HttpStatus.CREATED).body(Map.of(
-                    "status", "ok",
-                    "id", id,
-                    "href", href.toString()
-            ));
+            byte[] json = MAPPER.writeValueAsBytes(root);
+            averageCalculator.expectResult(uuid);
+            return resultWriter.submit(uuid, name, denomination, System.currentTimeMillis(), json)
+                    .thenApply(written -> {
+                        averageCalculator.addResult(uuid, name, denomination, root);
+                        return ResponseEntity.status(HttpStatus.CREATED).body(Map.<String, Object>of(
+                                "status", "ok",
+                                "id", id,
+                                "href", href.toString()
+                        ));
+                    })
+                    .exceptionally(t -> {
+                        averageCalculator.abandonResult(uuid);
+                        return writeFailed(t);
+                    });
         } catch (IllegalArgumentException bad) {
-            return ResponseEntity.badRequest().body(Map.of("status", "error", "message", bad.getMessage()));
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(Map.of("status", "error", "message", bad.getMessage())));
         } catch (IOException ex) {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of(
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of(
                     "status", "error",
                     "message", ex.getMessage()
+            )));
+        }
+    }
+
+    // Bulk import: NDJSON (ett resultat per linje) eller en JSON-array med resultater, lest strømmende fra forespørselen.
+    // Resultatene valideres og legges i skrivekøen i bolker på BATCH_CHUNK. Når en bolk er skrevet foldes den inn i
+    // gjennomsnittene med én oppdatering per hypotese/denominasjon. Svaret har ett element per resultat i samme
+    // rekkefølge som i forespørselen: id og href, eller hvorfor akkurat det resultatet ikke ble lagret.
+    @PostMapping(value = "/results/batch", consumes = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<Map<String, Object>> saveResultsBatch(InputStream body, HttpServletRequest request) {
+        Timer.Sample sample = Timer.start(registry);
+        ResponseEntity<Map<String, Object>> response = importBatch(body, request);
+        sample.stop(statusTimer("apologetikk.results.batch", response));
+        return response;
+    }
+
+    private record BatchItem(int index, UUID id, String name, String denomination, JsonNode root, String href,
+                             CompletableFuture<Void> written) {
+    }
+
+    private ResponseEntity<Map<String, Object>> importBatch(InputStream body, HttpServletRequest request) {
+        List<Map<String, Object>> results = new ArrayList<>();
+        List<BatchItem> chunk = new ArrayList<>(BATCH_CHUNK);
+        int stored = 0;
+        try {
+            String url = getResultsUrl();
+            try (MappingIterator<JsonNode> items = MAPPER.readerFor(JsonNode.class).readValues(body)) {
+                while (items.hasNextValue()) {
+                    JsonNode root = items.nextValue();
+                    int index = results.size();
+                    results.add(null);
+                    try {
+                        String name = getHypothesisName(root);
+                        String denomination = getSanitizedField(root, "denomination");
+                        UUID uuid = UUID.randomUUID();
+                        String href = url + "name=" + name + "&id=" + uuid;
+                        byte[] json = MAPPER.writeValueAsBytes(root);
+                        if (chunk.isEmpty()) {
+                            awaitBatchToken(request);
+                        }
+                        averageCalculator.expectResult(uuid);
+                        // Venter på plass i skrivekøen i stedet for å avvise, slik at store importer ikke fyller den opp
+                        CompletableFuture<Void> written = resultWriter.submit(uuid, name, denomination, System.currentTimeMillis(),
+                                json, BATCH_QUEUE_WAIT_MS);
+                        chunk.add(new BatchItem(index, uuid, name, denomination, root, href, written));
+                    } catch (IllegalArgumentException bad) {
+                        results.set(index, Map.of("index", index, "status", "error", "message", bad.getMessage()));
+                    }
+                    if (chunk.size() == BATCH_CHUNK) {
+                        stored += completeChunk(chunk, results);
+                    }
+                }
+            }
+        } catch (InterruptedIOException interrupted) {
+            // Avbrutt mens den ventet på AdmissionControl (f.eks. ved nedstengning) - ikke klientens feil
+            stored += completeChunk(chunk, results);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").body(Map.of(
+                    "status", "error",
+                    "message", "Import interrupted after " + results.size() + " results",
+                    "count", results.size(),
+                    "stored", stored,
+                    "results", results
             ));
+        } catch (IOException | RuntimeJsonMappingException malformed) {
+            // Det som kom før feilen er allerede lagret - klienten får vite hvilke resultater det gjelder
+            stored += completeChunk(chunk, results);
+            return ResponseEntity.badRequest().body(Map.of(
+                    "status", "error",
+                    "message", "Malformed input after " + results.size() + " results: " + malformed.getMessage(),
+                    "count", results.size(),
+                    "stored", stored,
+                    "results", results
+            ));
+        }
+        stored += completeChunk(chunk, results);
+        return ResponseEntity.ok().body(Map.of(
+                "status", "ok",
+                "count", results.size(),
+                "stored", stored,
+                "results", results
+        ));
+    }
+
+    // Venter til bolken er skrevet, og folder de lagrede resultatene inn i gjennomsnittene
+    private int completeChunk(List<BatchItem> chunk, List<Map<String, Object>> results) {
+        Map<String, Map<String, Map<UUID, JsonNode>>> byVariant = new TreeMap<>();
+        for (BatchItem item : chunk) {
+            try {
+                item.written().join();
+                byVariant.computeIfAbsent(item.name(), k -> new TreeMap<>())
+                        .computeIfAbsent(item.denomination(), k -> new LinkedHashMap<>())
+                        .put(item.id(), item.root());
+                results.set(item.index(), Map.of("index", item.index(), "status", "ok", "id", item.id().toString(), "href", item.href()));
+            } catch (CompletionException | CancellationException failed) {
+                averageCalculator.abandonResult(item.id());
+                Throwable cause = failed.getCause() != null ? failed.getCause() : failed;
+                results.set(item.index(), Map.of("index", item.index(), "status", "error", "message", String.valueOf(cause.getMessage())));
+            }
+        }
+        int stored = 0;
+        for (Map.Entry<String, Map<String, Map<UUID, JsonNode>>> hypothesis : byVariant.entrySet()) {
+            for (Map.Entry<String, Map<UUID, JsonNode>> variant : hypothesis.getValue().entrySet()) {
+                averageCalculator.addResults(hypothesis.getKey(), variant.getKey(), variant.getValue());
+                stored += variant.getValue().size();
+            }
+        }
+        chunk.clear();
+        return stored;
+    }
+
+    // Venter på et token for neste bolk i klientens bøtte - se AdmissionControl
+    private static void awaitBatchToken(HttpServletRequest request) throws InterruptedIOException {
+        try {
+            AdmissionControl.awaitBatchToken(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch import interrupted");
+        }
+    }
+
+    private static ResponseEntity<Map<String, Object>> writeFailed(Throwable t) {
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        if (cause instanceof RejectedExecutionException) {
+            // Skrivekøen er full - den tømmes på godt under et sekund når disken henger med
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").body(Map.of(
+                    "status", "error",
+                    "message", cause.getMessage()
+            ));
+        }
+        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of(
+                "status", "error",
+                "message", String.valueOf(cause.getMessage())
+        ));
+    }
+
+    // Alle lagrede resultater for en hypotese (evt. én denominasjon, evt. bare de som er lagret fra og med since) strømmet
+    // som NDJSON eller CSV rett fra lagringen - se ResultExport. since er en dato (UTC) eller et tidspunkt i ISO-8601.
+    // Returtypen må være ResponseEntity<StreamingResponseBody> for at Spring skal skrive svaret asynkront, så også
+    // feilmeldingene skrives som en StreamingResponseBody. Eksporten får sin egen timeout, satt på den asynkrone
+    // forespørselen av ResultExport før Spring starter den - andre asynkrone svar beholder spring.mvc.async.request-timeout
+    @GetMapping(value = "/results/export", produces = {"application/x-ndjson", "text/csv", MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<StreamingResponseBody> exportResults(@RequestParam String hypothesis,
+                                                               @RequestParam(required = false) String denomination,
+                                                               @RequestParam(required = false) String since,
+                                                               @RequestParam(defaultValue = "ndjson") String format,
+                                                               NativeWebRequest webRequest) {
+        if (!catalog.contains(hypothesis)) {
+            return exportError(HttpStatus.NOT_FOUND, "Unknown hypothesis");
+        }
+        if (denomination != null && !SAFE_SEG.matcher(denomination).matches()) {
+            return exportError(HttpStatus.BAD_REQUEST, "Invalid denomination");
+        }
+        ResultExport.Format exportFormat;
+        try {
+            exportFormat = ResultExport.Format.valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return exportError(HttpStatus.BAD_REQUEST, "format must be ndjson or csv");
+        }
+        long sinceMillis;
+        try {
+            sinceMillis = since == null ? Long.MIN_VALUE : parseSince(since);
+        } catch (DateTimeParseException e) {
+            return exportError(HttpStatus.BAD_REQUEST, "since must be an ISO-8601 date or date-time");
         }
+
+        StreamingResponseBody body = resultExport.open(hypothesis, denomination, sinceMillis, exportFormat,
+                webRequest instanceof AsyncWebRequest asyncRequest ? asyncRequest : null);
+        if (body == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "30")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(json(Map.of("status", "error", "message", "Too many exports running")));
+        }
+        String filename = hypothesis + (denomination == null ? "" : "-" + denomination) + "." + exportFormat.extension;
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(exportFormat.contentType))
+                .cacheControl(CacheControl.noStore())
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
+                .header("X-Accel-Buffering", "no") // nginx skal sende videre mens vi skriver, ikke bufre hele eksporten
+                .body(body);
+    }
+
+    private static long parseSince(String since) {
+        if (since.contains("T")) {
+            return OffsetDateTime.parse(since).toInstant().toEpochMilli();
+        }
+        return LocalDate.parse(since).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+    private static ResponseEntity<StreamingResponseBody> exportError(HttpStatus status, String message) {
+        return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON)
+                .body(json(Map.of("status", "error", "message", message)));
     }
 
+    private static StreamingResponseBody json(Map<String, Object> body) {
+        return out -> MAPPER.writeValue(out, body);
+    }
+
+    // Et lagret resultat endres aldri, så id-en er en gyldig sterk ETag - If-None-Match besvares med 304 uten å lese resultatet
     @GetMapping("/results/{uuid}")
-    public ResponseEntity<?> getResultsById(@PathVariable String uuid) {
+    public ResponseEntity<?> getResultsById(@PathVariable String uuid, WebRequest request) {
+        Timer.Sample sample = Timer.start(registry);
+        ResponseEntity<?> response = findResult(uuid, request);
+        sample.stop(statusTimer("apologetikk.results.lookup", response));
+        return response;
+    }
+
+    // response er null når Spring allerede har svart 304 Not Modified
+    private Timer statusTimer(String name, ResponseEntity<?> response) {
+        String status = response == null ? "304" : String.valueOf(response.getStatusCode().value());
+        return Timer.builder(name).tag("status", status).publishPercentileHistogram().register(registry);
+    }
+
+    private ResponseEntity<?> findResult(String uuid, WebRequest request) {
         // Validate UUID format to avoid path traversal-like inputs
+        UUID id;
         try {
-            UUID.fromString(uuid);
+            id = UUID.fromString(uuid);
         } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().body(Map.of(
                     "status", "error",
@@ -119,21 +488,27 @@ class API {
             ));
         }
 
-        // Search for data/*/*/{id}.json
-        try (Stream<Path> walk = Files.walk(ROOT, 3)) {
-            Optional<Path> found = walk
-                    .filter(p -> p.getFileName() != null && p.getFileName().toString().equals(uuid + ".json"))
-                    .findFirst();
+        if (!resultStore.contains(id)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of(
+                    "status", "error",
+                    "message", "Result not found"
+            ));
+        }
+
+        String etag = "\"" + id + "\"";
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
 
-            if (found.isEmpty()) {
+        try {
+            byte[] json = resultStore.find(id);
+            if (json == null) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of(
                         "status", "error",
                         "message", "Result not found"
                 ));
             }
-
-            JsonNode json = MAPPER.readTree(found.get().toFile());
-            return ResponseEntity.ok(json);
+            return ResponseEntity.ok().eTag(etag).cacheControl(CacheControl.noCache()).contentType(MediaType.APPLICATION_JSON).body(json);
         } catch (IOException io) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of(
                     "status", "error",
@@ -142,6 +517,23 @@ class API {
         }
     }
 
+    private static String getResultsUrl() throws IOException {
+        Files.createDirectories(ROOT);
+        boolean DEV = new File(ROOT + "/DEV").exists();
+        String url = "https://reasonableroad.com/results.html?";
+        if (DEV) url = "http://localhost:8080/results.html?";
+        return url;
+    }
+
+    // Navnet blir en mappe under data/, så bare hypoteser som finnes i static/evidence godtas
+    private String getHypothesisName(JsonNode root) {
+        String name = root.path("name").textValue();
+        if (!catalog.contains(name)) {
+            throw new IllegalArgumentException("Unknown hypothesis: " + name);
+        }
+        return name;
+    }
+
     private static String getSanitizedField(JsonNode root, String field) {
         String v = root.path(field).asText(null);
         if (v == null || v.isBlank()) {
@@ -154,31 +546,4 @@ class API {
         }
         return v;
     }
-
-    private static List<String> canonicalOrder = List.of(
-            "All", "Catholic", "Eastern-Orthodox",
-            "Oriental-Orthodox", "Lutheran", "Reformed",
-            "Anglican", "Baptist", "Methodist", "Evangelical",
-            "Non-denominational", "Adventist", "JW", "LDS",
-            "Jewish", "Muslim", "Hindu", "Buddhist", "New-Age",
-            "Spiritual", "Agnostic", "Atheist", "Other"
-    );
-
-    private static List<JsonNode> sortAverages(List<JsonNode> averages) {
-        // Sorter etter denomination i canonicalOrder
-        // Vi lager sorted-list med like mange elementer som canonicalOrder
-        List<JsonNode> sorted = new ArrayList<>();
-        for (int i = 0; i < canonicalOrder.size(); i++) {
-            sorted.add(null);
-        }
-        for (JsonNode jsonNode : averages) {
-            String denom = jsonNode.path("denomination").asText("Other");
-            int index = canonicalOrder.indexOf(denom);
-            if (index == -1) index = canonicalOrder.size() - 1; // Sett til "Other"
-            sorted.set(index, jsonNode);
-        }
-        // Fjern null-verdier
-        sorted.removeIf(Objects::isNull);
-        return sorted;
-    }
 }
@@ -0,0 +1,276 @@
+package msit.apologetikk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Admission control for submitted results (POST /api/results and /api/results/batch), registered in WebConfig. Every
+ * submit takes a token from the bucket of its client and from a global bucket:
+ *
+ *   client bucket empty - 429 Too Many Requests: this client sends faster than client.rate per second (bursts up to
+ *                         client.burst)
+ *   global bucket empty - 503 Service Unavailable: all clients together send faster than global.rate
+ *
+ * Both answers have Retry-After with the seconds until a token is back. A batch import takes one token like a single
+ * submit, and then one token per chunk of results (1000, see API) from a separate bucket of the client
+ * (client.batch-rate chunks per second, bursts up to client.batch-burst): API.importBatch waits for each token, so a
+ * large import is slowed down instead of failing half way, but still runs about as fast as the store can write it. Behind the bounded write queue in ResultWriter, which answers 503 when it is full, this is the
+ * ingest backpressure: clients are told to slow down before the queue and the disk are flooded.
+ *
+ * The client is the remote address, or with client-header (e.g. X-Forwarded-For behind nginx) the address that the
+ * closest of trusted-proxies proxies added: the entry that many places from the right. Entries further left are set
+ * by the client itself, and could be anything. Buckets of clients that have been idle long enough to be full again are
+ * dropped when there are more than max-clients.
+ *
+ * Reads of /api/average are counted in ReadPriority, so background rebuilds can step aside for them. Opening a stream
+ * on /api/average/stream takes a token from a separate bucket of the client with the client rate and burst; it answers
+ * 429 when it is empty, so one client cannot hold many of the max-subscribers streams or reconnect in a tight loop.
+ *
+ * Metrics: apologetikk.admission.admitted, apologetikk.admission.rejected (tag reason=client|global, and reason=queue
+ * from ResultWriter) and apologetikk.admission.clients (gauge).
+ */
+@Component
+public class AdmissionControl implements HandlerInterceptor {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final Logger log = LoggerFactory.getLogger(AdmissionControl.class);
+
+    private static final String READ_ATTRIBUTE = AdmissionControl.class.getName() + ".read";
+    private static final String BATCH_ATTRIBUTE = AdmissionControl.class.getName() + ".batch";
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final boolean enabled;
+    private final TokenBucket global;
+    private final double clientRate;
+    private final double clientBurst;
+    private final double batchRate;
+    private final double batchBurst;
+    private final String clientHeader;
+    private final int trustedProxies;
+    private final int maxClients;
+    private final Map<String, TokenBucket> clients = new ConcurrentHashMap<>();
+    private volatile long lastSweep;
+
+    private final ReadPriority readPriority;
+
+    private final Counter admitted;
+    private final Counter rejectedClient;
+    private final Counter rejectedGlobal;
+
+    public AdmissionControl(ReadPriority readPriority,
+                            @Value("${apologetikk.admission.enabled:true}") boolean enabled,
+                            @Value("${apologetikk.admission.global.rate:200}") double globalRate,
+                            @Value("${apologetikk.admission.global.burst:400}") double globalBurst,
+                            @Value("${apologetikk.admission.client.rate:5}") double clientRate,
+                            @Value("${apologetikk.admission.client.burst:20}") double clientBurst,
+                            @Value("${apologetikk.admission.client.batch-rate:10}") double batchRate,
+                            @Value("${apologetikk.admission.client.batch-burst:20}") double batchBurst,
+                            @Value("${apologetikk.admission.client-header:}") String clientHeader,
+                            @Value("${apologetikk.admission.trusted-proxies:1}") int trustedProxies,
+                            @Value("${apologetikk.admission.max-clients:10000}") int maxClients,
+                            MeterRegistry registry) {
+        this.readPriority = readPriority;
+        this.enabled = enabled;
+        this.global = new TokenBucket(globalRate, globalBurst);
+        this.clientRate = clientRate;
+        this.clientBurst = clientBurst;
+        this.batchRate = batchRate;
+        this.batchBurst = batchBurst;
+        this.clientHeader = clientHeader == null || clientHeader.isBlank() ? null : clientHeader.trim();
+        this.trustedProxies = Math.max(1, trustedProxies);
+        this.maxClients = Math.max(1, maxClients);
+
+        this.admitted = Counter.builder("apologetikk.admission.admitted")
+                .description("Submits let through admission control")
+                .register(registry);
+        this.rejectedClient = rejected(registry, "client");
+        this.rejectedGlobal = rejected(registry, "global");
+        Gauge.builder("apologetikk.admission.clients", clients, Map::size)
+                .description("Clients with a token bucket")
+                .register(registry);
+        log.info("AdmissionControl " + (enabled ? "på" : "av") + ": global " + globalRate + "/s (burst " + globalBurst
+                + "), per klient " + clientRate + "/s (burst " + clientBurst + "), " + batchRate + " bolker/s (burst "
+                + batchBurst + ")");
+    }
+
+    static Counter rejected(MeterRegistry registry, String reason) {
+        return Counter.builder("apologetikk.admission.rejected")
+                .tag("reason", reason)
+                .description("Submits turned away by admission control or a full write queue")
+                .register(registry);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws IOException {
+        // Kalles på nytt når et asynkront svar (CompletableFuture) sendes - da er forespørselen allerede sluppet inn
+        if (request.getDispatcherType() != DispatcherType.REQUEST) {
+            return true;
+        }
+        if (request.getRequestURI().equals("/api/average/stream")) {
+            return admitStream(request, response);
+        }
+        if (request.getRequestURI().startsWith("/api/average")) {
+            readPriority.readStarted();
+            request.setAttribute(READ_ATTRIBUTE, Boolean.TRUE);
+            return true;
+        }
+        if (!enabled || !"POST".equals(request.getMethod())) {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        String clientId = clientOf(request);
+        TokenBucket client = clients.computeIfAbsent(clientId, k -> new TokenBucket(clientRate, clientBurst));
+        if (clients.size() > maxClients) {
+            sweep(now);
+        }
+        long clientWait = client.tryTake(now);
+        if (clientWait > 0) {
+            rejectedClient.increment();
+            return reject(response, HttpStatus.TOO_MANY_REQUESTS, clientWait, "Too many results from this client");
+        }
+        long globalWait = global.tryTake(now);
+        if (globalWait > 0) {
+            client.giveBack(); // Klienten skal ikke betale for en innsending som ble avvist av den globale grensen
+            rejectedGlobal.increment();
+            return reject(response, HttpStatus.SERVICE_UNAVAILABLE, globalWait, "Server is busy");
+        }
+        admitted.increment();
+        if (request.getRequestURI().equals("/api/results/batch")) {
+            // Egen bøtte for resultatene i bolker, med en nøkkel som ikke kan være en adresse
+            request.setAttribute(BATCH_ATTRIBUTE, clients.computeIfAbsent("batch " + clientId, k -> new TokenBucket(batchRate, batchBurst)));
+        }
+        return true;
+    }
+
+    // En strøm holdes åpen lenge, så den telles ikke som en lesing i ReadPriority. Hver ny strøm tar en token fra en egen
+    // bøtte per klient (client.rate/client.burst), så den som åpner mange strømmer ikke bruker opp innsendingene sine
+    private boolean admitStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!enabled) {
+            return true;
+        }
+        long now = System.nanoTime();
+        TokenBucket streams = clients.computeIfAbsent("stream " + clientOf(request), k -> new TokenBucket(clientRate, clientBurst));
+        if (clients.size() > maxClients) {
+            sweep(now);
+        }
+        long wait = streams.tryTake(now);
+        if (wait > 0) {
+            rejectedClient.increment();
+            return reject(response, HttpStatus.TOO_MANY_REQUESTS, wait, "Too many streams opened by this client");
+        }
+        admitted.increment();
+        return true;
+    }
+
+    // Called by API.importBatch for every chunk of a batch: waits until the client's batch bucket has a token.
+    // Returns at once when admission control is off
+    static void awaitBatchToken(HttpServletRequest request) throws InterruptedException {
+        if (request.getAttribute(BATCH_ATTRIBUTE) instanceof TokenBucket bucket) {
+            long wait;
+            while ((wait = bucket.tryTake(System.nanoTime())) > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        if (request.getAttribute(READ_ATTRIBUTE) != null) {
+            request.removeAttribute(READ_ATTRIBUTE);
+            readPriority.readFinished();
+        }
+    }
+
+    private String clientOf(HttpServletRequest request) {
+        if (clientHeader != null) {
+            String forwarded = request.getHeader(clientHeader);
+            if (forwarded != null && !forwarded.isBlank()) {
+                // Den nærmeste proxyen legger til adressen den fikk forbindelsen fra helt til høyre
+                String[] hops = forwarded.split(",");
+                String hop = hops[Math.max(0, hops.length - trustedProxies)].trim();
+                if (!hop.isEmpty()) {
+                    return hop;
+                }
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    // Fjerner klienter som har hatt fulle bøtter siden sist - de ville fått samme bøtte om igjen. Høyst én gang i sekundet
+    private void sweep(long now) {
+        if (now - lastSweep < SWEEP_INTERVAL_NANOS) {
+            return;
+        }
+        lastSweep = now;
+        clients.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    private static boolean reject(HttpServletResponse response, HttpStatus status, long waitNanos, String message) throws IOException {
+        response.setStatus(status.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, (waitNanos + 999_999_999) / 1_000_000_000)));
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        MAPPER.writeValue(response.getOutputStream(), Map.of("status", "error", "message", message));
+        return false;
+    }
+
+    // En token bucket som fylles med rate tokens per sekund, opp til burst. Låsen holdes bare mens tallene regnes ut
+    static final class TokenBucket {
+        private final double ratePerNano;
+        private final double burst;
+        private double tokens;
+        private long updated;
+
+        TokenBucket(double ratePerSecond, double burst) {
+            this.ratePerNano = Math.max(ratePerSecond, 1e-9) / TimeUnit.SECONDS.toNanos(1);
+            this.burst = Math.max(1, burst);
+            this.tokens = this.burst;
+            this.updated = System.nanoTime();
+        }
+
+        // Tar én token og returnerer 0, eller returnerer nanosekunder til det er en token å ta
+        synchronized long tryTake(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / ratePerNano);
+        }
+
+        synchronized void giveBack() {
+            tokens = Math.min(burst, tokens + 1);
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(long now) {
+            if (now > updated) {
+                tokens = Math.min(burst, tokens + (now - updated) * ratePerNano);
+                updated = now;
+            }
+        }
+    }
+}
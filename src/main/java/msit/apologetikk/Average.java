@@ -2,9 +2,8 @@ package msit.apologetikk;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
+// An average as it is written to average.json - built from an AverageAccumulator
 public class Average {
     private int count;
     private String name;
@@ -17,25 +16,7 @@ public class Average {
     public Average() {
     }
 
-    // copy constructor
-    public Average(Average other) {
-        this.count = other.count;
-        this.name = other.name;
-        this.title = other.title;
-        this.denomination = other.denomination;
-        this.aprioriPct = other.aprioriPct;
-        this.posteriorPct = other.posteriorPct;
-        if (other.evidence != null) {
-            this.evidence = new ArrayList<>(other.evidence.size());
-            for (Evidence e : other.evidence) {
-                this.evidence.add(new Evidence(e));
-            }
-        } else {
-            this.evidence = new ArrayList<>();
-        }
-    }
-
-    // Initializing constructor - used when normalizing an Average
+    // Initializing constructor - used when building the view of an AverageAccumulator
     public Average(int count, String name, String title, String denomination, double aprioriPct, double posteriorPct) {
         this.count = count;
         this.name = name;
@@ -45,52 +26,6 @@ public class Average {
         this.posteriorPct = posteriorPct;
     }
 
-    public void updateWith(Average newData) {
-        if (newData == null) {
-            return;
-        }
-        this.count += newData.getCount();
-        this.aprioriPct = calcAverage(this.aprioriPct, this.count, newData.aprioriPct);
-        this.posteriorPct = calcAverage(this.posteriorPct, this.count, newData.posteriorPct);
-
-        Map<Integer, Evidence> currentEvidenceMap = evidence.stream().collect(TreeMap::new, (m, v) -> m.put(v.getId(), v), Map::putAll);
-
-
-        for (Evidence newEv : newData.evidence) {
-            Evidence existingEv = currentEvidenceMap.get(newEv.getId());
-            if (existingEv != null) {
-                existingEv.setCount(existingEv.getCount() + 1);
-                if (newEv.getWeight() == 0) {
-                    existingEv.setCountDisregard(existingEv.getCountDisregard() + 1);
-                } else {
-                    existingEv.setPehPct(calcAverage(existingEv.getPehPct(), existingEv.getCount(), newEv.getPehPct()));
-                    existingEv.setPenhPct(calcAverage(existingEv.getPenhPct(), existingEv.getCount(), newEv.getPenhPct()));
-                    if (existingEv.getWeightD() == null) { // første gang vi setter vekt
-                        existingEv.setWeightD(newEv.getWeight());
-                    }
-                    existingEv.setWeightD(calcAverage(existingEv.getWeightD(), existingEv.getCount(), (double) newEv.getWeight())); // gjennomsnitt av vektene
-                    existingEv.setWeight((int) Math.round(existingEv.getWeightD()));
-                }
-            } else {
-                newEv.setCount(1);
-                if (newEv.getWeight() == 0) {
-                    newEv.setCountDisregard(1);
-                }
-                newEv.setWeightD(newEv.getWeight());
-                currentEvidenceMap.put(newEv.getId(), newEv);
-            }
-        }
-        this.evidence = new ArrayList<>(currentEvidenceMap.values());
-
-    }
-
-    private double calcAverage(double currentAvg, int currentCount, double newData) {
-        double productCurrentAvg = currentAvg * (currentCount - 1);
-        double productNewAvg = productCurrentAvg + newData;
-        double avg = productNewAvg / currentCount;
-        return avg;
-    }
-
     public void addEvidence(Evidence ev) {
         this.evidence.add(ev);
     }
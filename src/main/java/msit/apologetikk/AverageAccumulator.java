@@ -0,0 +1,495 @@
+package msit.apologetikk;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Running aggregate for one variant (hypothesis + denomination). Instead of running means it keeps exact counts and
+ * sums in primitive arrays, one slot per evidence id, so folding in a result or merging two accumulators never
+ * allocates (except when a new evidence id shows up) and the means do not drift however many results are added.
+ *
+ * An evidence with weight 0 is "disregarded": it is counted in count and countDisregard, but its percentages and
+ * weight are not part of the means. Average and Evidence are only used as views of the accumulator when averages are
+ * written as JSON (toAverage / averageOfVariants).
+ *
+ * Besides the sums it keeps a PercentHistogram of every percentage (aprioriPct, posteriorPct, and pehPct / penhPct of
+ * every evidence that is not disregarded), so medians and other percentiles are merged the same way as the means.
+ *
+ * write/read give the exact counts, sums and histograms in binary form, for the partials that nodes share with each
+ * other (see SharedPartials) - an accumulator read back merges exactly like the one that was written.
+ */
+class AverageAccumulator {
+
+    private static final int DIRECT_LOOKUP_LIMIT = 1 << 12;
+    // Øvre grense for antall evidenser i en akkumulator som leses inn - vern mot ødelagte filer
+    private static final int MAX_SLOTS = 1 << 16;
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private String name;
+    private String title;
+    private String denomination;
+    private long count;
+    private double aprioriSum;
+    private double posteriorSum;
+
+    // Ett element per evidens - slot i er evidensen med id ids[i]
+    private int size;
+    private int[] ids = new int[16];
+    private String[] heads = new String[16];
+    private long[] evCount = new long[16];
+    private long[] evDisregard = new long[16];
+    private double[] pehSum = new double[16];
+    private double[] penhSum = new double[16];
+    private double[] weightSum = new double[16];
+
+    // Fordelingene - evidensenes histogrammer lages første gang evidensen vurderes
+    private final PercentHistogram aprioriHist = new PercentHistogram();
+    private final PercentHistogram posteriorHist = new PercentHistogram();
+    private PercentHistogram[] pehHist = new PercentHistogram[16];
+    private PercentHistogram[] penhHist = new PercentHistogram[16];
+
+    // Evidensene i resultatet som leses i add(byte[]), før de legges til
+    private int pendingSize;
+    private int[] pendingIds = new int[16];
+    private String[] pendingHeads = new String[16];
+    private double[] pendingPeh = new double[16];
+    private double[] pendingPenh = new double[16];
+    private int[] pendingWeight = new int[16];
+
+    // slotById[id] = slot + 1 for id i 0..DIRECT_LOOKUP_LIMIT, 0 betyr ukjent. Andre id-er slås opp lineært
+    private int[] slotById = new int[64];
+
+    AverageAccumulator() {
+    }
+
+    AverageAccumulator(AverageAccumulator other) {
+        merge(other);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    // Folds one stored result (as posted to /api/results) into the accumulator
+    void add(JsonNode result) {
+        addResult(result.path("name").textValue(), result.path("title").textValue(), result.path("denomination").textValue(),
+                result.path("aprioriPct").asDouble(), result.path("posteriorPct").asDouble());
+        for (JsonNode ev : result.path("evidence")) {
+            addEvidence(ev.path("id").asInt(), ev.path("head").textValue(),
+                    ev.path("pehPct").asDouble(), ev.path("penhPct").asDouble(), ev.path("weight").asInt());
+        }
+    }
+
+    /* Folds one stored result straight from its JSON bytes, reading only the fields the averages need with a streaming
+     * parser - no JsonNode tree is built. Values are converted the same way as in add(JsonNode): missing or null numbers
+     * count as 0, and numbers given as strings are parsed. Nothing is added if the JSON is malformed. */
+    void add(byte[] json) throws IOException {
+        try (JsonParser parser = JSON.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object at " + parser.currentLocation());
+            }
+            // Navn, tittel og denominasjon brukes bare fra første resultat
+            boolean first = count == 0;
+            String name = null;
+            String title = null;
+            String denomination = null;
+            double aprioriPct = 0;
+            double posteriorPct = 0;
+            pendingSize = 0;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "name" -> name = first ? text(parser, value) : null;
+                    case "title" -> title = first ? text(parser, value) : null;
+                    case "denomination" -> denomination = first ? text(parser, value) : null;
+                    case "aprioriPct" -> aprioriPct = parser.getValueAsDouble();
+                    case "posteriorPct" -> posteriorPct = parser.getValueAsDouble();
+                    case "evidence" -> parseEvidences(parser, value);
+                    default -> parser.skipChildren();
+                }
+            }
+            // Først når hele resultatet er lest legges det til
+            addResult(name, title, denomination, aprioriPct, posteriorPct);
+            for (int i = 0; i < pendingSize; i++) {
+                addEvidence(pendingIds[i], pendingHeads[i], pendingPeh[i], pendingPenh[i], pendingWeight[i]);
+                pendingHeads[i] = null;
+            }
+        }
+    }
+
+    private void parseEvidences(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+        while ((value = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (value != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            int id = 0;
+            boolean idSeen = false;
+            String head = null;
+            double peh = 0;
+            double penh = 0;
+            int weight = 0;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                value = parser.nextToken();
+                switch (field) {
+                    case "id" -> {
+                        id = parser.getValueAsInt();
+                        idSeen = true;
+                    }
+                    // Overskriften trengs bare første gang en evidens dukker opp
+                    case "head" -> head = !idSeen || needsHead(id) ? text(parser, value) : null;
+                    case "pehPct" -> peh = parser.getValueAsDouble();
+                    case "penhPct" -> penh = parser.getValueAsDouble();
+                    case "weight" -> weight = parser.getValueAsInt();
+                    default -> parser.skipChildren();
+                }
+            }
+            if (pendingSize == pendingIds.length) {
+                growPending();
+            }
+            pendingIds[pendingSize] = id;
+            pendingHeads[pendingSize] = head;
+            pendingPeh[pendingSize] = peh;
+            pendingPenh[pendingSize] = penh;
+            pendingWeight[pendingSize] = weight;
+            pendingSize++;
+        }
+    }
+
+    private boolean needsHead(int id) {
+        int slot = find(id);
+        return slot < 0 || heads[slot] == null;
+    }
+
+    // Som JsonNode.textValue(): bare tekstverdier, ellers null
+    private static String text(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    // Adds the top-level values of one result. Evidences are added afterwards with addEvidence
+    void addResult(String name, String title, String denomination, double aprioriPct, double posteriorPct) {
+        if (count == 0) { // Navn, tittel og denominasjon tas fra første resultat
+            this.name = name;
+            this.title = title;
+            this.denomination = denomination;
+        }
+        count++;
+        aprioriSum += aprioriPct;
+        posteriorSum += posteriorPct;
+        aprioriHist.add(aprioriPct);
+        posteriorHist.add(posteriorPct);
+    }
+
+    void addEvidence(int id, String head, double pehPct, double penhPct, int weight) {
+        int slot = slotOf(id, head);
+        evCount[slot]++;
+        if (weight == 0) {
+            evDisregard[slot]++;
+        } else {
+            pehSum[slot] += pehPct;
+            penhSum[slot] += penhPct;
+            weightSum[slot] += weight;
+            histograms(slot);
+            pehHist[slot].add(pehPct);
+            penhHist[slot].add(penhPct);
+        }
+    }
+
+    private void histograms(int slot) {
+        if (pehHist[slot] == null) {
+            pehHist[slot] = new PercentHistogram();
+            penhHist[slot] = new PercentHistogram();
+        }
+    }
+
+    // Adds all results of another accumulator to this one (results are weighted equally)
+    void merge(AverageAccumulator other) {
+        if (count == 0) {
+            name = other.name;
+            title = other.title;
+            denomination = other.denomination;
+        }
+        count += other.count;
+        aprioriSum += other.aprioriSum;
+        posteriorSum += other.posteriorSum;
+        aprioriHist.merge(other.aprioriHist);
+        posteriorHist.merge(other.posteriorHist);
+        for (int i = 0; i < other.size; i++) {
+            int slot = slotOf(other.ids[i], other.heads[i]);
+            evCount[slot] += other.evCount[i];
+            evDisregard[slot] += other.evDisregard[i];
+            pehSum[slot] += other.pehSum[i];
+            penhSum[slot] += other.penhSum[i];
+            weightSum[slot] += other.weightSum[i];
+            if (other.pehHist[i] != null) {
+                histograms(slot);
+                pehHist[slot].merge(other.pehHist[i]);
+                penhHist[slot].merge(other.penhHist[i]);
+            }
+        }
+    }
+
+    void write(DataOutput out) throws IOException {
+        writeText(out, name);
+        writeText(out, title);
+        writeText(out, denomination);
+        out.writeLong(count);
+        out.writeDouble(aprioriSum);
+        out.writeDouble(posteriorSum);
+        aprioriHist.write(out);
+        posteriorHist.write(out);
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeInt(ids[i]);
+            writeText(out, heads[i]);
+            out.writeLong(evCount[i]);
+            out.writeLong(evDisregard[i]);
+            out.writeDouble(pehSum[i]);
+            out.writeDouble(penhSum[i]);
+            out.writeDouble(weightSum[i]);
+            out.writeBoolean(pehHist[i] != null);
+            if (pehHist[i] != null) {
+                pehHist[i].write(out);
+                penhHist[i].write(out);
+            }
+        }
+    }
+
+    static AverageAccumulator read(DataInput in) throws IOException {
+        AverageAccumulator acc = new AverageAccumulator();
+        acc.name = readText(in);
+        acc.title = readText(in);
+        acc.denomination = readText(in);
+        acc.count = in.readLong();
+        acc.aprioriSum = in.readDouble();
+        acc.posteriorSum = in.readDouble();
+        acc.aprioriHist.merge(PercentHistogram.read(in));
+        acc.posteriorHist.merge(PercentHistogram.read(in));
+        int size = in.readInt();
+        if (size < 0 || size > MAX_SLOTS) {
+            throw new IOException("Invalid number of evidences: " + size);
+        }
+        for (int i = 0; i < size; i++) {
+            int id = in.readInt();
+            if (acc.find(id) >= 0) {
+                throw new IOException("Duplicate evidence id " + id);
+            }
+            int slot = acc.slotOf(id, readText(in));
+            acc.evCount[slot] = in.readLong();
+            acc.evDisregard[slot] = in.readLong();
+            acc.pehSum[slot] = in.readDouble();
+            acc.penhSum[slot] = in.readDouble();
+            acc.weightSum[slot] = in.readDouble();
+            if (in.readBoolean()) {
+                acc.pehHist[slot] = PercentHistogram.read(in);
+                acc.penhHist[slot] = PercentHistogram.read(in);
+            }
+        }
+        return acc;
+    }
+
+    private static void writeText(DataOutput out, String text) throws IOException {
+        out.writeBoolean(text != null);
+        if (text != null) {
+            out.writeUTF(text);
+        }
+    }
+
+    private static String readText(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /* The variant average as it is written to average.json: evidences in the order of the hypothesis file, and
+     * evidences nobody has answered are added as disregarded. Evidence ids not in the hypothesis file are left out. */
+    Average toAverage(HypothesisCatalog.Hypothesis hypothesis) {
+        Average avg = new Average((int) count, name, title, denomination, mean(aprioriSum, count), mean(posteriorSum, count));
+        for (int i = 0; i < hypothesis.size(); i++) {
+            int id = hypothesis.id(i);
+            int slot = find(id);
+            if (slot < 0) {
+                // Evidence is missing in the average - add a disregarded evidence
+                avg.addEvidence(evidence(id, hypothesis.head(i), count, count, 0, 0, 0));
+            } else {
+                long counted = evCount[slot] - evDisregard[slot];
+                avg.addEvidence(evidence(id, heads[slot], evCount[slot], evDisregard[slot],
+                        mean(pehSum[slot], counted), mean(penhSum[slot], counted), mean(weightSum[slot], counted)));
+            }
+        }
+        return avg;
+    }
+
+    /* The distributions of the percentages, for /api/average/distribution: one PercentHistogram.summary per percentage,
+     * evidences in the order of the hypothesis file. A percentage nobody has given is null. Unlike the "All" average,
+     * an accumulator merged from several denominations weighs every result the same here. */
+    Map<String, Object> distributions(HypothesisCatalog.Hypothesis hypothesis, int bins) {
+        Map<String, Object> distributions = new LinkedHashMap<>();
+        distributions.put("count", count);
+        distributions.put("aprioriPct", aprioriHist.summary(bins));
+        distributions.put("posteriorPct", posteriorHist.summary(bins));
+        List<Map<String, Object>> evidence = new ArrayList<>();
+        for (int i = 0; i < hypothesis.size(); i++) {
+            int id = hypothesis.id(i);
+            int slot = find(id);
+            Map<String, Object> ev = new LinkedHashMap<>();
+            ev.put("id", id);
+            ev.put("head", slot >= 0 && heads[slot] != null ? heads[slot] : hypothesis.head(i));
+            ev.put("pehPct", slot >= 0 && pehHist[slot] != null ? pehHist[slot].summary(bins) : null);
+            ev.put("penhPct", slot >= 0 && penhHist[slot] != null ? penhHist[slot].summary(bins) : null);
+            evidence.add(ev);
+        }
+        distributions.put("evidence", evidence);
+        return distributions;
+    }
+
+    /* The "All" average for a hypothesis: an average of the variant averages, where each denomination counts the same
+     * regardless of how many results it has. Counts are the totals over all variants. */
+    static Average averageOfVariants(Collection<AverageAccumulator> variants, HypothesisCatalog.Hypothesis hypothesis) {
+        return averageOfVariants(variants, hypothesis, "All");
+    }
+
+    // The same for any set of variants, with denomination set to the given label
+    static Average averageOfVariants(Collection<AverageAccumulator> variants, HypothesisCatalog.Hypothesis hypothesis, String label) {
+        long total = 0;
+        double apriori = 0;
+        double posterior = 0;
+        String name = null;
+        String title = null;
+        for (AverageAccumulator v : variants) {
+            if (name == null) {
+                name = v.name;
+                title = v.title;
+            }
+            total += v.count;
+            apriori += mean(v.aprioriSum, v.count);
+            posterior += mean(v.posteriorSum, v.count);
+        }
+        int n = variants.size();
+        Average all = new Average((int) total, name, title, label, n == 0 ? 0 : apriori / n, n == 0 ? 0 : posterior / n);
+
+        for (int i = 0; i < hypothesis.size(); i++) {
+            int id = hypothesis.id(i);
+            long evTotal = 0;
+            long disregardTotal = 0;
+            double peh = 0;
+            double penh = 0;
+            double weight = 0;
+            int answered = 0; // Varianter der minst én har vurdert evidensen
+            String head = hypothesis.head(i);
+            for (AverageAccumulator v : variants) {
+                int slot = v.find(id);
+                if (slot < 0) {
+                    evTotal += v.count;
+                    disregardTotal += v.count;
+                    continue;
+                }
+                head = v.heads[slot] != null ? v.heads[slot] : head;
+                evTotal += v.evCount[slot];
+                disregardTotal += v.evDisregard[slot];
+                long counted = v.evCount[slot] - v.evDisregard[slot];
+                if (counted > 0) {
+                    peh += v.pehSum[slot] / counted;
+                    penh += v.penhSum[slot] / counted;
+                    weight += v.weightSum[slot] / counted;
+                    answered++;
+                }
+            }
+            all.addEvidence(evidence(id, head, evTotal, disregardTotal,
+                    mean(peh, answered), mean(penh, answered), mean(weight, answered)));
+        }
+        return all;
+    }
+
+    private static Evidence evidence(int id, String head, long count, long countDisregard, double peh, double penh, double weight) {
+        Evidence ev = new Evidence(id, head);
+        ev.setCount((int) count);
+        ev.setCountDisregard((int) countDisregard);
+        ev.setPehPct(peh);
+        ev.setPenhPct(penh);
+        ev.setWeight((int) Math.round(weight));
+        return ev;
+    }
+
+    private static double mean(double sum, long n) {
+        return n == 0 ? 0 : sum / n;
+    }
+
+    private int find(int id) {
+        if (id >= 0 && id < DIRECT_LOOKUP_LIMIT) {
+            return id < slotById.length ? slotById[id] - 1 : -1;
+        }
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int slotOf(int id, String head) {
+        int slot = find(id);
+        if (slot >= 0) {
+            if (heads[slot] == null) {
+                heads[slot] = head;
+            }
+            return slot;
+        }
+        if (size == ids.length) {
+            grow();
+        }
+        slot = size++;
+        ids[slot] = id;
+        heads[slot] = head;
+        if (id >= 0 && id < DIRECT_LOOKUP_LIMIT) {
+            if (id >= slotById.length) {
+                slotById = Arrays.copyOf(slotById, Math.min(DIRECT_LOOKUP_LIMIT, Math.max(id + 1, slotById.length * 2)));
+            }
+            slotById[id] = slot + 1;
+        }
+        return slot;
+    }
+
+    private void growPending() {
+        int capacity = pendingIds.length * 2;
+        pendingIds = Arrays.copyOf(pendingIds, capacity);
+        pendingHeads = Arrays.copyOf(pendingHeads, capacity);
+        pendingPeh = Arrays.copyOf(pendingPeh, capacity);
+        pendingPenh = Arrays.copyOf(pendingPenh, capacity);
+        pendingWeight = Arrays.copyOf(pendingWeight, capacity);
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        heads = Arrays.copyOf(heads, capacity);
+        evCount = Arrays.copyOf(evCount, capacity);
+        evDisregard = Arrays.copyOf(evDisregard, capacity);
+        pehSum = Arrays.copyOf(pehSum, capacity);
+        penhSum = Arrays.copyOf(penhSum, capacity);
+        weightSum = Arrays.copyOf(weightSum, capacity);
+        pehHist = Arrays.copyOf(pehHist, capacity);
+        penhHist = Arrays.copyOf(penhHist, capacity);
+    }
+}
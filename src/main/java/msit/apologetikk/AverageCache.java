@@ -0,0 +1,106 @@
+package msit.apologetikk;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Cache of the complete /api/average response per hypothesis, kept both as serialized JSON and gzipped, so that
+ * repeated GETs do not compress anything. The JSON is the latest AverageSnapshots snapshot, and an entry is only used
+ * while its version is the latest one - it is also dropped when AverageCalculator publishes new averages. The cache holds
+ * at most maxEntries hypotheses and evicts the least recently viewed one when full. Each entry carries a strong ETag
+ * made from the snapshot version, so unchanged averages can be answered with 304.
+ * Hits and misses are counted in apologetikk.average.cache.requests (tag result=hit|miss).
+ */
+@Component
+public class AverageCache {
+
+    // etag kommer fra versjonen til øyeblikksbildet, lastModified er tidspunktet det ble publisert
+    record Entry(long version, byte[] json, byte[] gzip, String etag, long lastModified) {
+        // Den gzippede representasjonen er andre bytes, og må derfor ha en egen sterk ETag
+        String gzipETag() {
+            return etag.substring(0, etag.length() - 1) + "-gzip\"";
+        }
+    }
+
+    // Gir siste øyeblikksbilde for hypotesen, eller null hvis ingenting er publisert ennå
+    interface Loader {
+        AverageSnapshots.Snapshot load(String hypothesis);
+    }
+
+    private final Map<String, Entry> entries;
+    private final Counter hits;
+    private final Counter misses;
+
+    public AverageCache(AverageCalculator averageCalculator, @Value("${apologetikk.average-cache.max-entries:64}") int maxEntries,
+                        MeterRegistry registry) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        averageCalculator.onAveragesWritten(this::invalidate);
+
+        this.hits = Counter.builder("apologetikk.average.cache.requests").tag("result", "hit").register(registry);
+        this.misses = Counter.builder("apologetikk.average.cache.requests").tag("result", "miss").register(registry);
+        Gauge.builder("apologetikk.average.cache.size", this, AverageCache::size)
+                .description("Hypotheses with a cached /api/average response")
+                .register(registry);
+    }
+
+    // Returns null when nothing has been published for the hypothesis yet
+    public Entry get(String hypothesis, Loader loader) {
+        AverageSnapshots.Snapshot snapshot = loader.load(hypothesis);
+        if (snapshot == null) {
+            return null;
+        }
+        synchronized (this) {
+            Entry cached = entries.get(hypothesis);
+            if (cached != null && cached.version() == snapshot.version()) {
+                hits.increment();
+                return cached;
+            }
+        }
+
+        misses.increment();
+        // Gzippes utenfor låsen - to samtidige bommer på samme hypotese gjør bare samme jobb to ganger
+        Entry entry = new Entry(snapshot.version(), snapshot.json(), gzip(snapshot.json()), ETags.ofVersion(snapshot.version()),
+                snapshot.publishedAt());
+
+        synchronized (this) {
+            Entry cached = entries.get(hypothesis);
+            if (cached == null || cached.version() < entry.version()) {
+                entries.put(hypothesis, entry);
+            }
+        }
+        return entry;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void invalidate(String hypothesis) {
+        entries.remove(hypothesis);
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(buffer)) {
+            gz.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buffer.toByteArray();
+    }
+}
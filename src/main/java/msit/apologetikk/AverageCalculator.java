@@ -1,195 +1,551 @@
 package msit.apologetikk;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.springframework.core.io.ClassPathResource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 @Component
-public class AverageCalculator implements Runnable {
-
-    private static final ObjectMapper MAPPER = new ObjectMapper();
+public class AverageCalculator implements Runnable, AverageScheduler.Job {
 
     private static final Logger log = LoggerFactory.getLogger(AverageCalculator.class);
 
-    public static void init() {
-        AverageCalculator job = new AverageCalculator();
-        Thread thread = new Thread(job);
-        thread.start();
+    private static final File DATA_DIR = new File("data");
+
+    // Løpende gjennomsnitt per hypotese og variant (denominasjon). Bygges opp av en full gjenoppbygging ved oppstart,
+    // og deretter foldes hvert nytt resultat inn her - slik slipper vi å lese alle filene i data/ på nytt ved hver innsending
+    private final Map<String, Map<String, AverageAccumulator>> variantAverages = new HashMap<>();
+
+    // De samme resultatene fordelt på dager og måneder etter når de ble lagret, for gjennomsnitt over tidsvinduer.
+    // Dagsbøtter eldre enn dailyBuckets dager slås sammen til månedsbøtter - se TimeBuckets
+    private final Map<String, Map<String, TimeBuckets>> variantBuckets = new HashMap<>();
+    private final int dailyBuckets;
+
+    // Beskytter variantAverages og variantBuckets. En ReentrantLock og ikke synchronized: innsendinger som venter på en
+    // monitor ville låst bærertråden sin når forespørslene kjører på virtuelle tråder. run() holder den bare når den
+    // begynner og når den bytter inn det som er bygget, ikke mens resultatene leses
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Resultater som er gitt til ResultWriter, men ikke foldet inn ennå. En gjenoppbygging som kjører mellom lagringen og
+    // foldingen finner dem i ResultStore og teller dem med (scannedUnfolded). Når gjenoppbyggingen er tatt i bruk blir de
+    // som fortsatt ikke er foldet inn countedByRebuild (under lock), og addResults hopper over dem
+    private final Set<UUID> unfolded = ConcurrentHashMap.newKeySet();
+    private final Set<UUID> scannedUnfolded = ConcurrentHashMap.newKeySet();
+    private Set<UUID> countedByRebuild = new HashSet<>();
+
+    // Resultater som er foldet inn mens en gjenoppbygging leser (under lock). De som gjenoppbyggingen ikke fant i
+    // ResultStore, foldes inn i det nye på nytt når det byttes inn. foldedIds er id-ene, lest av gjenoppbyggingen uten lås
+    private record Folded(UUID id, String name, String denomination, long foldedAt, JsonNode result) {
     }
+    private boolean rebuilding;
+    private final List<Folded> foldedDuringRebuild = new ArrayList<>();
+    private final Set<UUID> foldedIds = ConcurrentHashMap.newKeySet();
+
+    // Skriving av average.json samles opp og gjøres av én tråd - se AverageScheduler
+    private final AverageScheduler scheduler;
+
+    // Gjennomsnittene publiseres som versjonerte øyeblikksbilder - både i minnet (for API-et) og som average.json
+    private final AverageSnapshots snapshots;
+
+    // Får beskjed (med hypotesenavnet) hver gang et nytt øyeblikksbilde er publisert for en hypotese
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    // Full gjenoppbygging fordeles på hypoteser og varianter i denne poolen
+    private final ForkJoinPool rebuildPool;
+
+    // Gjenoppbyggingen tar en kort pause når noen leser gjennomsnitt - se ReadPriority
+    private final ReadPriority readPriority;
+    private static final int FILES_BETWEEN_YIELDS = 256;
+
+    private final ResultStore resultStore;
+
+    // Med flere noder: denne nodens delsummer skrives til en delt mappe, og slås sammen med de andre nodenes før de
+    // publiseres - se SharedPartials. Hypotesene som har nye resultater her siden delsummene deres sist ble skrevet
+    private final SharedPartials sharedPartials;
+    private final Set<String> unsharedChanges = new HashSet<>();
 
-    public static void main(String[] args) {
-        init();
+    // Evidensene i hver hypotese bestemmer rekkefølgen i average.json, og fyller inn evidenser ingen har vurdert
+    private final HypothesisCatalog catalog;
+
+    // Metrikker - se apologetikk.averages.* under /actuator/prometheus
+    private final MeterRegistry registry;
+    private final Timer rebuildTimer;
+    private final Timer flushTimer;
+    private final Counter filesParsed;
+    private final AtomicInteger activeRuns = new AtomicInteger();
+
+    // Telles ned når første fulle gjenoppbygging er ferdig - StartupWarmup venter på den før tjenesten meldes klar
+    private final CountDownLatch firstRebuild = new CountDownLatch(1);
+    private volatile double lastRebuildFilesPerSecond;
+
+    @Autowired
+    public AverageCalculator(ResultStore resultStore,
+                             HypothesisCatalog catalog,
+                             AverageSnapshots snapshots,
+                             @Value("${apologetikk.averages.debounce-ms:500}") long debounceMillis,
+                             @Value("${apologetikk.averages.max-delay-ms:5000}") long maxDelayMillis,
+                             @Value("${apologetikk.averages.rebuild-parallelism:0}") int rebuildParallelism,
+                             @Value("${apologetikk.averages.daily-buckets:90}") int dailyBuckets,
+                             @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads,
+                             ReadPriority readPriority,
+                             SharedPartials sharedPartials,
+                             MeterRegistry registry) {
+        this.resultStore = resultStore;
+        this.dailyBuckets = Math.max(1, dailyBuckets);
+        this.catalog = catalog;
+        this.snapshots = snapshots;
+        this.scheduler = new AverageScheduler(this, debounceMillis, maxDelayMillis, virtualThreads);
+        // Standard er én tråd mindre enn antall prosessorer, så det alltid er en prosessor ledig for forespørslene
+        this.rebuildPool = new ForkJoinPool(rebuildParallelism > 0 ? rebuildParallelism
+                : Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        this.readPriority = readPriority;
+        this.sharedPartials = sharedPartials;
+        // Endringer fra andre noder skrives sammen med de lokale, med samme debounce
+        sharedPartials.onRemoteChange((hypothesis, denominations) -> denominations.forEach(d -> scheduler.markDirty(hypothesis, d)));
+
+        this.registry = registry;
+        this.rebuildTimer = Timer.builder("apologetikk.averages.rebuild")
+                .description("Full rebuild of all averages")
+                .register(registry);
+        this.flushTimer = Timer.builder("apologetikk.averages.flush")
+                .description("Writing the changed averages of one hypothesis")
+                .register(registry);
+        this.filesParsed = Counter.builder("apologetikk.averages.files.parsed")
+                .description("Results read during full rebuilds")
+                .register(registry);
+        Gauge.builder("apologetikk.averages.runs.active", activeRuns, AtomicInteger::get)
+                .description("Rebuilds and flushes running right now")
+                .register(registry);
+        Gauge.builder("apologetikk.averages.rebuild.files.per.second", this, c -> c.lastRebuildFilesPerSecond)
+                .description("Results read per second in the last full rebuild")
+                .register(registry);
+    }
+
+    AverageCalculator(ResultStore resultStore) throws IOException {
+        this(resultStore, new HypothesisCatalog(), new AverageSnapshots(), 0, 0, 0, 90, false,
+                new ReadPriority(0, new SimpleMeterRegistry()), SharedPartials.disabled(), new SimpleMeterRegistry());
+    }
+
+    // Recovery mode: run a full rebuild of every average.json from the stored results.
+    // Uses the file store under data/, or the segment log under data-log/ when started with the argument "segment-log".
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("segment-log")) {
+            SegmentLogResultStore store = new SegmentLogResultStore();
+            store.open();
+            new AverageCalculator(store).run();
+            store.close();
+        } else {
+            FileResultStore store = new FileResultStore();
+            store.open();
+            new AverageCalculator(store).run();
+            store.close();
+        }
     }
 
     @PostConstruct
     public void startBackgroundJob() {
-        init();
+        rebuild();
     }
 
-    public void run() {
+    @PreDestroy
+    public void stopBackgroundJob() {
+        scheduler.shutdown();
+        rebuildPool.shutdown();
+    }
+
+    // Waits until the first full rebuild after startup has finished (or failed). Returns false on timeout
+    public boolean awaitFirstRebuild(long timeout, TimeUnit unit) throws InterruptedException {
+        return firstRebuild.await(timeout, unit);
+    }
+
+    public void onAveragesWritten(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    // Requests a full rebuild in the background. Several requests that arrive close together result in one rebuild.
+    public void rebuild() {
+        scheduler.requestRebuild();
+    }
+
+    /* Must be called before a result is handed to ResultWriter, and be followed by addResult (or abandonResult if it was
+     * not stored). A full rebuild that reads the result from the store before it is folded in has counted it already,
+     * and addResult then leaves it out. */
+    public void expectResult(UUID id) {
+        unfolded.add(id);
+    }
+
+    // The result expected with expectResult was not stored after all
+    public void abandonResult(UUID id) {
+        unfolded.remove(id);
+        lock.lock();
+        try {
+            countedByRebuild.remove(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Folds a single newly stored result into the running average for its variant. The affected average.json files
+     * (the variant and "All") are written later by the scheduler, so a burst of submissions is written only once. */
+    public void addResult(UUID id, String name, String denomination, JsonNode result) {
+        addResults(name, denomination, Map.of(id, result));
+    }
+
+    // Folds several results (by id) for the same variant in one go - used by batch imports.
+    // The time buckets get the results by when they are folded in, a few milliseconds after they were saved.
+    public void addResults(String name, String denomination, Map<UUID, JsonNode> results) {
+        try {
+            long now = System.currentTimeMillis();
+            lock.lock();
+            try {
+                AverageAccumulator variant = variantAverages.computeIfAbsent(name, k -> new TreeMap<>())
+                        .computeIfAbsent(denomination, k -> new AverageAccumulator());
+                TimeBuckets buckets = variantBuckets.computeIfAbsent(name, k -> new TreeMap<>())
+                        .computeIfAbsent(denomination, k -> new TimeBuckets());
+                for (Map.Entry<UUID, JsonNode> result : results.entrySet()) {
+                    if (countedByRebuild.remove(result.getKey())) {
+                        unfolded.remove(result.getKey());
+                        continue; // Allerede med i gjenoppbyggingen
+                    }
+                    if (rebuilding) {
+                        // Før unfolded.remove, så gjenoppbyggingen alltid finner id-en i den ene eller den andre
+                        foldedIds.add(result.getKey());
+                        foldedDuringRebuild.add(new Folded(result.getKey(), name, denomination, now, result.getValue()));
+                    }
+                    unfolded.remove(result.getKey());
+                    variant.add(result.getValue());
+                    buckets.add(now, result.getValue());
+                }
+                if (sharedPartials.enabled()) {
+                    unsharedChanges.add(name);
+                }
+            } finally {
+                lock.unlock();
+            }
+            scheduler.markDirty(name, denomination);
+        } catch (Exception e) {
+            log.error("Feil under oppdatering av gjennomsnitt for " + name + "/" + denomination + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Called by the scheduler: writes average.json for the changed variants and for "All" in the hypothesis
+    @Override
+    public void flush(String hypothesis, Set<String> denominations) {
+        activeRuns.incrementAndGet();
+        try {
+            flushTimer.record(() -> flushHypothesis(hypothesis, denominations));
+        } finally {
+            activeRuns.decrementAndGet();
+        }
+    }
 
+    private void flushHypothesis(String hypothesis, Set<String> denominations) {
+        HypothesisCatalog.Hypothesis hyp = catalog.get(hypothesis);
+        if (hyp == null) {
+            log.warn("No evidence resource found for hypothesis " + hypothesis + " - skipping average calculation for this hypothesis.");
+            return;
+        }
+
+        // Lag kopier under låsen, og skriv filene etterpå slik at innsendinger ikke venter på disken
+        Map<String, AverageAccumulator> partials = new TreeMap<>();
+        Map<String, TimeBuckets> buckets = new TreeMap<>();
+        long keepFromDay = TimeBuckets.epochDay(System.currentTimeMillis()) - dailyBuckets + 1;
+        if (sharedPartials.enabled()) {
+            // Alle variantene på denne noden trengs, både til delsummene som deles og til "All" over alle nodene
+            boolean changedHere;
+            lock.lock();
+            try {
+                changedHere = unsharedChanges.remove(hypothesis);
+                variantAverages.getOrDefault(hypothesis, Map.of()).forEach((denomination, variantAvg) -> {
+                    partials.put(denomination, new AverageAccumulator(variantAvg));
+                    TimeBuckets variantBucket = variantBuckets.get(hypothesis).get(denomination);
+                    variantBucket.compact(keepFromDay);
+                    buckets.put(denomination, variantBucket.publish());
+                });
+            } finally {
+                lock.unlock();
+            }
+            // Delsummene skrives bare når det har kommet resultater her - ellers ville to noder svart hverandre i det uendelige
+            publishMerged(hyp, partials, buckets, denominations, changedHere, false);
+            return;
+        }
+        Map<String, Average> toWrite = new TreeMap<>();
+        Average all;
+        lock.lock();
+        try {
+            Map<String, AverageAccumulator> variants = variantAverages.get(hypothesis);
+            if (variants == null) {
+                return;
+            }
+            for (String denomination : denominations) {
+                AverageAccumulator variantAvg = variants.get(denomination);
+                if (variantAvg != null) {
+                    toWrite.put(denomination, variantAvg.toAverage(hyp));
+                    partials.put(denomination, new AverageAccumulator(variantAvg));
+                    TimeBuckets variantBucket = variantBuckets.get(hypothesis).get(denomination);
+                    variantBucket.compact(keepFromDay);
+                    buckets.put(denomination, variantBucket.publish());
+                }
+            }
+            all = AverageAccumulator.averageOfVariants(variants.values(), hyp);
+        } finally {
+            lock.unlock();
+        }
+        snapshots.publish(hypothesis, toWrite, all, partials, buckets, false);
+        notifyListeners(hypothesis);
+    }
+
+    /* With SharedPartials: writes this node's partials of the hypothesis to the shared directory (if share), merges
+     * them with the other nodes', and publishes the given denominations - or every denomination any node has, with
+     * replace - and "All" over all of them. partials and buckets are this node's, for every denomination it has, and
+     * are not changed afterwards. */
+    private void publishMerged(HypothesisCatalog.Hypothesis hyp, Map<String, AverageAccumulator> partials,
+                               Map<String, TimeBuckets> buckets, Set<String> denominations, boolean share, boolean replace) {
+        if (share && !buckets.isEmpty()) {
+            sharedPartials.publish(hyp.name(), buckets);
+        }
+        Set<String> toPublish = denominations;
+        if (replace) {
+            toPublish = new HashSet<>(partials.keySet());
+            sharedPartials.remoteDenominations().getOrDefault(hyp.name(), Set.of()).forEach(toPublish::add);
+        }
+        SharedPartials.Merged merged = sharedPartials.merge(hyp.name(), partials, buckets, toPublish);
+        if (merged.totals().isEmpty()) {
+            return;
+        }
+        Map<String, Average> toWrite = new TreeMap<>();
+        Map<String, AverageAccumulator> mergedPartials = new TreeMap<>();
+        for (String denomination : toPublish) {
+            AverageAccumulator total = merged.totals().get(denomination);
+            if (total != null && merged.buckets().containsKey(denomination)) {
+                toWrite.put(denomination, total.toAverage(hyp));
+                mergedPartials.put(denomination, total);
+            }
+        }
+        snapshots.publish(hyp.name(), toWrite, AverageAccumulator.averageOfVariants(merged.totals().values(), hyp),
+                mergedPartials, merged.buckets(), replace);
+        notifyListeners(hyp.name());
+    }
+
+    /* Full rebuild - called by the scheduler, or directly from main(). Submits are folded into the current averages while
+     * the results are read, and the ones the rebuild did not find in the store are folded into the rebuilt averages
+     * before they are swapped in. */
+    @Override
+    public void run() {
+        activeRuns.incrementAndGet();
+        long start = System.nanoTime();
+        double filesBefore = filesParsed.count();
+        lock.lock();
+        try {
+            rebuilding = true;
+        } finally {
+            lock.unlock();
+        }
         try {
             // Print to stdout on the form of 2025-09-21T14:15:40.187Z Text
             log.info("AverageCalculator.run() starter...");
-            File dataDir = new File("data");
+            File dataDir = DATA_DIR;
             if (!dataDir.exists()) {
                 dataDir.mkdirs();
             }
 
-            for (File hypotesemappe : dataDir.listFiles(File::isDirectory)) {
-
-                // HypEvidences will drive the order of the evidences in the average.json files - and also be used to fill in "blank/disregarded" evidences
-                List<Evidence> hypEvidences = getHypothesisEvidences(hypotesemappe);
-
+            // Hver hypotese bygges som en egen oppgave i rebuildPool, og hver variant i hypotesen som en deloppgave.
+            // Resultatene samles i TreeMap-er etterpå, så "All" blir likt uansett hvilken rekkefølge oppgavene blir ferdige i
+            Map<String, ForkJoinTask<Map<String, VariantResult>>> tasks = new TreeMap<>();
+            for (String hypothesis : resultStore.hypotheses()) {
+                File hypotesemappe = new File(dataDir, hypothesis);
+                tasks.put(hypothesis, ForkJoinTask.adapt(() -> rebuildHypothesis(hypotesemappe)));
+            }
+            rebuildPool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks.values())));
 
-                int fileCount = 0;
-                int variantCount = 0;
-                List<Average> variantAverages = new ArrayList<>();
-                for (File variantmappe : hypotesemappe.listFiles(File::isDirectory)) {
-                    Average variantAvg = null;
-                    for (File jsonFile : variantmappe.listFiles((dir, name) -> name.endsWith(".json"))) {
-                        if (jsonFile.getName().equals("average.json")) {
-                            continue; // Hopp over tidligere genererte average.json filer
-                        }
-                        fileCount++;
-                        try {
-                            JsonNode newJson = MAPPER.readTree(jsonFile);
-                            Average newData = MAPPER.convertValue(newJson, Average.class);
-                            newData.setCount(1);
-
-                            if (variantAvg == null) { // Lager gjennomsnitt av *første* fil => samme som den filen
-                                variantAvg = MAPPER.convertValue(newJson, Average.class);
-                                variantAvg.setCount(1);
-                                variantAvg.getEvidence().forEach(e -> {
-                                    e.setCount(1);
-                                    e.setWeightD(e.getWeight());
-                                    if (e.getWeight() == 0) {
-                                        e.setCountDisregard(1);
-                                    }
-                                });
-                            } else { // Oppdater gjennomsnittet med ny data
-                                variantAvg.updateWith(newData);
-                            }
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
+            Map<String, Set<String>> replayed = new TreeMap<>();
+            lock.lock();
+            try {
+                variantAverages.clear();
+                variantBuckets.clear();
+                tasks.forEach((name, task) -> {
+                    Map<String, VariantResult> variants = task.join();
+                    variants.forEach((denomination, result) -> {
+                        variantAverages.computeIfAbsent(name, k -> new TreeMap<>()).put(denomination, result.average());
+                        variantBuckets.computeIfAbsent(name, k -> new TreeMap<>()).put(denomination, result.buckets());
+                    });
+                });
+                // Foldet inn etter at varianten deres ble lest - ellers er de allerede med
+                for (Folded folded : foldedDuringRebuild) {
+                    if (scannedUnfolded.contains(folded.id())) {
+                        continue;
                     }
-                    if (variantAvg != null) {
-                        variantCount++;
-                        Average normalizedAvg = normalizeAverageEvidence(variantAvg, hypEvidences);
-                        writeAverageToFileAsJson(variantmappe, normalizedAvg);
-                        variantAverages.add(variantAvg);
+                    variantAverages.computeIfAbsent(folded.name(), k -> new TreeMap<>())
+                            .computeIfAbsent(folded.denomination(), k -> new AverageAccumulator()).add(folded.result());
+                    variantBuckets.computeIfAbsent(folded.name(), k -> new TreeMap<>())
+                            .computeIfAbsent(folded.denomination(), k -> new TimeBuckets()).add(folded.foldedAt(), folded.result());
+                    replayed.computeIfAbsent(folded.name(), k -> new TreeSet<>()).add(folded.denomination());
+                }
+                // Lest av gjenoppbyggingen, men ikke foldet inn ennå. Byttes ut ved hver gjenoppbygging, så id-er som
+                // aldri blir foldet inn ikke blir liggende
+                countedByRebuild = new HashSet<>();
+                for (UUID id : scannedUnfolded) {
+                    if (unfolded.contains(id)) {
+                        countedByRebuild.add(id);
                     }
                 }
-                // Print to stdout on the form of 2025-09-21T14:15:40.187Z Text
-                log.info("Har behandlet " + fileCount + " filer i " + variantCount + " varianter i hypotesemappen " + hypotesemappe.getName());
-
-                // På dette tidspunktet har vi laget gjennomsnitt for hver variant i hypotesemappen. Vi skal nå
-                // lage et gjennomsnitt for hele hypotesemappen basert på variant-gjennomsnittene - altså et
-                // gjennomsnitt av gjennomsnittene (vi kaller denominasjonen "All")
-                if (!variantAverages.isEmpty()) {
-                    Average hypotesemappeAverage = null;
-                    for (Average variantAvg : variantAverages) {
-                        if (hypotesemappeAverage == null) { // Lager total-gjennomsnitt av *første* variant => samme som den varianten
-                            hypotesemappeAverage = new Average(variantAvg);
-                            hypotesemappeAverage.setDenomination("All");
-                        } else { // Oppdater gjennomsnittet med ny variant
-                            hypotesemappeAverage.updateWith(variantAvg);
+                if (sharedPartials.enabled()) {
+                    // Gjenoppbyggingen har skrevet delsummene til alle hypotesene her, men ikke med resultatene over.
+                    // De som bare andre noder har resultater for, publiseres av flush etterpå
+                    unsharedChanges.clear();
+                    unsharedChanges.addAll(replayed.keySet());
+                    sharedPartials.remoteDenominations().forEach((hypothesis, denominations) -> {
+                        if (!tasks.containsKey(hypothesis)) {
+                            denominations.forEach(d -> scheduler.markDirty(hypothesis, d));
                         }
-                    }
-                    // Lagre gjennomsnittet i hypotesemappen
-                    Average normalizedAvg = normalizeAverageEvidence(hypotesemappeAverage, hypEvidences);
-                    writeAverageToFileAsJson(hypotesemappe, normalizedAvg);
-
+                    });
                 }
+            } finally {
+                lock.unlock();
             }
+            // Øyeblikksbildene fra gjenoppbyggingen mangler dem, og flush kan ha publisert det gamle underveis
+            replayed.forEach((hypothesis, denominations) -> denominations.forEach(d -> scheduler.markDirty(hypothesis, d)));
+
+            long elapsed = System.nanoTime() - start;
+            rebuildTimer.record(elapsed, TimeUnit.NANOSECONDS);
+            double files = filesParsed.count() - filesBefore;
+            lastRebuildFilesPerSecond = files * TimeUnit.SECONDS.toNanos(1) / Math.max(elapsed, 1);
+            log.info("AverageCalculator.run() ferdig: " + (long) files + " filer på " + TimeUnit.NANOSECONDS.toMillis(elapsed)
+                    + " ms (" + Math.round(lastRebuildFilesPerSecond) + " filer/s)");
         } catch (Exception e) {
             String stacktrace = Arrays.stream(e.getStackTrace()).map(StackTraceElement::toString).reduce("", (a, b) -> a + "\n    at " + b);
             // Print to stderr on the form of 2025-09-21T14:15:40.187Z Text
             log.error("Feil under beregning av gjennomsnitt: " + e.getMessage() + "\n" + stacktrace);
+        } finally {
+            lock.lock();
+            try {
+                rebuilding = false;
+                foldedDuringRebuild.clear();
+                foldedIds.clear();
+                scannedUnfolded.clear();
+            } finally {
+                lock.unlock();
+            }
+            activeRuns.decrementAndGet();
+            firstRebuild.countDown();
         }
     }
 
-    private Average normalizeAverageEvidence(Average avg, List<Evidence> hypEvidences) {
-        // The Average may not have all evidences from the hypothesis (if some evidences were never used in any variant)
-        // Also, the order of evidences in Average should match the order in hypEvidences - there could be old variants that find their way into the Average
-        // (Because the average is calculated from individual results collected over a long time). Therefor both the order and presence of evidences must be normalized.
-        // If an evidence is missing in the Average, we add it as a "disregarded" evidence (weight=0)
-
-        Average normalizedAverage = new Average(avg.getCount(), avg.getName(), avg.getTitle(), avg.getDenomination(), avg.getAprioriPct(), avg.getPosteriorPct());
-        for (Evidence hypEv : hypEvidences) {
-            Evidence ev = avg.getEvidence(hypEv.getId());
-            if (ev == null) {
-                // Evidence is missing in Average - add a disregarded evidence
-                Evidence disregardedEv = new Evidence();
-                disregardedEv.setId(hypEv.getId());
-                disregardedEv.setHead(hypEv.getHead());
-                disregardedEv.setCount(avg.getCount());
-                disregardedEv.setCountDisregard(avg.getCount());
-                disregardedEv.setPehPct(0.0);
-                disregardedEv.setPenhPct(0.0);
-                disregardedEv.setWeight(0);
-                disregardedEv.setWeightD(0.0);
-                normalizedAverage.addEvidence(disregardedEv);
-            } else {
-                normalizedAverage.addEvidence(ev);
+    // Bygger gjennomsnitt for alle varianter i en hypotesemappe, og publiserer dem sammen med "All" som et nytt øyeblikksbilde
+    private Map<String, VariantResult> rebuildHypothesis(File hypotesemappe) throws IOException {
+        long start = System.nanoTime();
+        // The hypothesis will drive the order of the evidences in the average.json files - and also be used to fill in "blank/disregarded" evidences
+        HypothesisCatalog.Hypothesis hyp = catalog.get(hypotesemappe.getName());
+        if (hyp == null) {
+            log.warn("No evidence resource found for hypothesis " + hypotesemappe.getName() + " - skipping average calculation for this hypothesis.");
+            return new TreeMap<>();
+        }
+
+        Map<String, ForkJoinTask<VariantResult>> variantTasks = new TreeMap<>();
+        for (String denomination : resultStore.denominations(hypotesemappe.getName())) {
+            variantTasks.put(denomination, ForkJoinTask.adapt(() -> averageOfVariant(hypotesemappe.getName(), denomination)));
+        }
+        ForkJoinTask.invokeAll(variantTasks.values());
+
+        int fileCount = 0;
+        Map<String, VariantResult> rebuilt = new TreeMap<>();
+        Map<String, AverageAccumulator> variants = new TreeMap<>();
+        Map<String, Average> toWrite = new TreeMap<>();
+        Map<String, AverageAccumulator> partials = new TreeMap<>();
+        Map<String, TimeBuckets> buckets = new TreeMap<>();
+        for (Map.Entry<String, ForkJoinTask<VariantResult>> entry : variantTasks.entrySet()) {
+            VariantResult result = entry.getValue().join();
+            fileCount += result.fileCount();
+            if (result.average().getCount() > 0) {
+                rebuilt.put(entry.getKey(), result);
+                toWrite.put(entry.getKey(), result.average().toAverage(hyp));
+                variants.put(entry.getKey(), result.average());
+                // Øyeblikksbildet får kopier, siden variantene endres av senere innsendinger
+                partials.put(entry.getKey(), new AverageAccumulator(result.average()));
+                buckets.put(entry.getKey(), result.buckets().publish());
             }
         }
-        return normalizedAverage;
-    }
-
-    /* This method read the evidences found in the original hypothesis JSON file from the classpath static/evidence directory */
-    private static List<Evidence> getHypothesisEvidences(File hypotesemappe) throws IOException {
-        // I need to find the corresponding File in the static/evidence directory for each hypothesis directory
-        // If hypotesemappe is "data/Hypothesis1", then the evidence directory is "static/evidence/Hypothesis1"
-        ClassPathResource hypoteseEvidenceCPR = new ClassPathResource("static/evidence/" + hypotesemappe.getName() + ".json");
-        if (!hypoteseEvidenceCPR.exists()) {
-            log.warn("No evidence resource found for hypothesis " + hypotesemappe.getName() + " at " + hypoteseEvidenceCPR.getPath() + " - skipping average calculation for this hypothesis.");
-            return new ArrayList<>();
-        }
-        InputStream in = hypoteseEvidenceCPR.getInputStream();
-        String hypEvidenceJSONStr = new String(in.readAllBytes(), StandardCharsets.UTF_8);
-        in.close();
-        JsonNode hypEvidenceJson = MAPPER.readTree(hypEvidenceJSONStr);
-        // just to verify it's valid JSON
-        List<Evidence> evidences = new ArrayList<>();
-        hypEvidenceJson.get("evidence").forEach(ev -> {
-            evidences.add(new Evidence(ev.get("id").asInt(), ev.get("head").asText()));
-        });
-        return evidences;
+        // Print to stdout on the form of 2025-09-21T14:15:40.187Z Text
+        log.info("Har behandlet " + fileCount + " filer i " + variants.size() + " varianter i hypotesemappen " + hypotesemappe.getName());
+        filesParsed.increment(fileCount);
+
+        // På dette tidspunktet har vi laget gjennomsnitt for hver variant i hypotesemappen. Vi skal nå
+        // lage et gjennomsnitt for hele hypotesemappen basert på variant-gjennomsnittene - altså et
+        // gjennomsnitt av gjennomsnittene (vi kaller denominasjonen "All")
+        if (sharedPartials.enabled()) {
+            publishMerged(hyp, partials, buckets, Set.of(), true, true);
+        } else if (!variants.isEmpty()) {
+            // Varianter som ikke lenger har resultater kommer ikke med i det nye øyeblikksbildet
+            snapshots.publish(hypotesemappe.getName(), toWrite, AverageAccumulator.averageOfVariants(variants.values(), hyp), partials,
+                    buckets, true);
+            notifyListeners(hypotesemappe.getName());
+        }
+        Timer.builder("apologetikk.averages.rebuild.hypothesis")
+                .description("Rebuild of the averages of one hypothesis")
+                .tag("hypothesis", hypotesemappe.getName())
+                .register(registry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return rebuilt;
     }
 
-    private static void writeAverageToFileAsJson(File variantmappe, Average variantAvg) {
-        try {
-            Path averagePath = variantmappe.toPath().resolve("average.json");
-            // Avrund alle double-verdier til 0 desimaler og gjør dem til integer
-            variantAvg.setAprioriPct(Math.round(variantAvg.getAprioriPct()));
-            variantAvg.setPosteriorPct(Math.round(variantAvg.getPosteriorPct()));
-            for (Evidence ev : variantAvg.getEvidence()) {
-                ev.setPehPct(Math.round(ev.getPehPct()));
-                ev.setPenhPct(Math.round(ev.getPenhPct()));
-                ev.setWeight((int) Math.round(ev.getWeightD()));
+    private record VariantResult(AverageAccumulator average, TimeBuckets buckets, int fileCount) {
+    }
+
+    // Folder alle resultatene i en variant inn i tidsbøttene etter når de ble lagret, i den faste rekkefølgen ResultStore gir
+    // dem slik at resultatet er deterministisk. Gjennomsnittet for hele varianten er summen av bøttene.
+    // Filene leses med en strømmende parser rett inn i akkumulatorene, uten å bygge et JsonNode-tre
+    private VariantResult averageOfVariant(String hypothesis, String denomination) throws IOException {
+        TimeBuckets buckets = new TimeBuckets();
+        int[] fileCount = new int[1];
+        resultStore.scan(hypothesis, denomination, (id, savedAt, json) -> {
+            if (++fileCount[0] % FILES_BETWEEN_YIELDS == 0) {
+                readPriority.yieldToReads();
             }
-            MAPPER.writerWithDefaultPrettyPrinter().writeValue(averagePath.toFile(), variantAvg);
-            // Print to stdout on the form of 2025-09-21T14:15:40.187Z Text
-            log.info("\tLaget " + averagePath);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            if ((!unfolded.isEmpty() && unfolded.contains(id)) || (!foldedIds.isEmpty() && foldedIds.contains(id))) {
+                scannedUnfolded.add(id);
+            }
+            buckets.add(savedAt, json);
+        });
+        buckets.compact(TimeBuckets.epochDay(System.currentTimeMillis()) - dailyBuckets + 1);
+        return new VariantResult(buckets.total(), buckets, fileCount[0]);
+    }
+
+    private void notifyListeners(String hypothesis) {
+        for (Consumer<String> listener : listeners) {
+            listener.accept(hypothesis);
         }
     }
 
@@ -0,0 +1,200 @@
+package msit.apologetikk;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/*
+ * Averages for groups of denominations, for GET /api/average?hypothesis=...&groups=... A group is merged from the
+ * per-denomination partials in the latest AverageSnapshots snapshot, so a query costs one merge per denomination and
+ * never reads stored results. Every group gets two means:
+ *
+ *   bySubmissions  - every result counts the same (the partials are added together)
+ *   byDenomination - every denomination counts the same, like "All" in average.json
+ *
+ * groups is a comma-separated list of groups. A group is one of the named groups below, or denominations joined with
+ * "+" (a space after URL decoding): groups=christian,non-christian or groups=Catholic+Lutheran,Atheist+Agnostic
+ *
+ * The same groups can be asked for a time window (the last days, or each of the last months). The partials are then
+ * merged from the TimeBuckets of each denomination instead. /api/average/distribution gives the percentiles and
+ * histograms of the groups instead of the means - see PercentHistogram.
+ */
+final class AverageRollup {
+
+    static final int MAX_GROUPS = 32;
+
+    // Navngitte grupper av denominasjonene i stats.html. "all" er alle denominasjoner det finnes resultater for
+    private static final String ALL = "all";
+    private static final Map<String, List<String>> NAMED_GROUPS = Map.of(
+            "christian", List.of("Catholic", "Eastern-Orthodox", "Oriental-Orthodox", "Lutheran", "Reformed", "Anglican",
+                    "Baptist", "Methodist", "Evangelical", "Non-denominational", "Adventist", "JW", "LDS"),
+            "non-christian", List.of("Jewish", "Muslim", "Hindu", "Buddhist", "New-Age", "Spiritual", "Agnostic", "Atheist")
+    );
+
+    // denominations er null for "all"
+    record Group(String label, Set<String> denominations) {
+        boolean contains(String denomination) {
+            return denominations == null || denominations.contains(denomination);
+        }
+    }
+
+    private AverageRollup() {
+    }
+
+    // Throws IllegalArgumentException for an empty or too long list
+    static List<Group> parseGroups(String spec) {
+        List<Group> groups = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String label = part.trim().replaceAll("\\s+", "+");
+            if (label.isEmpty()) {
+                continue;
+            }
+            String named = label.toLowerCase(Locale.ROOT);
+            if (named.equals(ALL)) {
+                groups.add(new Group(ALL, null));
+            } else if (NAMED_GROUPS.containsKey(named)) {
+                groups.add(new Group(named, new LinkedHashSet<>(NAMED_GROUPS.get(named))));
+            } else {
+                groups.add(new Group(label, new LinkedHashSet<>(List.of(label.split("\\+")))));
+            }
+        }
+        if (groups.isEmpty()) {
+            throw new IllegalArgumentException("No groups given");
+        }
+        if (groups.size() > MAX_GROUPS) {
+            throw new IllegalArgumentException("At most " + MAX_GROUPS + " groups per request");
+        }
+        return groups;
+    }
+
+    // The /api/average?groups= response. The snapshot must have partials.
+    static Map<String, Object> rollup(AverageSnapshots.Snapshot snapshot, HypothesisCatalog.Hypothesis hypothesis, List<Group> groups) {
+        Map<String, Object> response = envelope(snapshot);
+        response.put("groups", groups(snapshot.partials(), hypothesis, groups));
+        return response;
+    }
+
+    // The /api/average?days= response: results saved in the last days days, up to and including today (UTC)
+    static Map<String, Object> window(AverageSnapshots.Snapshot snapshot, HypothesisCatalog.Hypothesis hypothesis, List<Group> groups,
+                                      int days, long today) {
+        long since = today - days + 1;
+        long from = since;
+        Map<String, AverageAccumulator> partials = new TreeMap<>();
+        for (Map.Entry<String, TimeBuckets> entry : snapshot.buckets().entrySet()) {
+            TimeBuckets.Window window = entry.getValue().since(since);
+            if (window != null) {
+                partials.put(entry.getKey(), window.average());
+                from = Math.min(from, window.from());
+            }
+        }
+        Map<String, Object> response = envelope(snapshot);
+        response.put("days", days);
+        response.put("from", LocalDate.ofEpochDay(from).toString()); // Tidligere enn today - days + 1 hvis vinduet når inn i en sammenslått måned
+        response.put("to", LocalDate.ofEpochDay(today).toString());
+        response.put("groups", groups(partials, hypothesis, groups));
+        return response;
+    }
+
+    // The /api/average/monthly response: one entry per calendar month (UTC) for the last months months, oldest first
+    static Map<String, Object> monthly(AverageSnapshots.Snapshot snapshot, HypothesisCatalog.Hypothesis hypothesis, List<Group> groups,
+                                       int months, long today) {
+        List<Map<String, Object>> series = new ArrayList<>();
+        YearMonth current = YearMonth.from(LocalDate.ofEpochDay(today));
+        for (int i = months - 1; i >= 0; i--) {
+            YearMonth month = current.minusMonths(i);
+            long monthStart = month.atDay(1).toEpochDay();
+            Map<String, AverageAccumulator> partials = new TreeMap<>();
+            snapshot.buckets().forEach((denomination, buckets) -> {
+                AverageAccumulator partial = buckets.month(monthStart);
+                if (partial != null) {
+                    partials.put(denomination, partial);
+                }
+            });
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("month", month.toString());
+            entry.put("groups", groups(partials, hypothesis, groups));
+            series.add(entry);
+        }
+        Map<String, Object> response = envelope(snapshot);
+        response.put("months", series);
+        return response;
+    }
+
+    // The /api/average/distribution response. The snapshot must have partials.
+    static Map<String, Object> distributions(AverageSnapshots.Snapshot snapshot, HypothesisCatalog.Hypothesis hypothesis,
+                                             List<Group> groups, int bins) {
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (Group group : groups) {
+            List<String> present = new ArrayList<>();
+            AverageAccumulator merged = new AverageAccumulator();
+            snapshot.partials().forEach((denomination, partial) -> {
+                if (group.contains(denomination)) {
+                    present.add(denomination);
+                    merged.merge(partial);
+                }
+            });
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("group", group.label());
+            result.put("denominations", present);
+            result.put("count", merged.getCount());
+            result.put("distributions", merged.getCount() == 0 ? null : merged.distributions(hypothesis, bins));
+            results.add(result);
+        }
+        Map<String, Object> response = envelope(snapshot);
+        response.put("bins", bins);
+        response.put("groups", results);
+        return response;
+    }
+
+    private static Map<String, Object> envelope(AverageSnapshots.Snapshot snapshot) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("status", "ok");
+        response.put("hypothesis", snapshot.hypothesis());
+        response.put("version", snapshot.version());
+        return response;
+    }
+
+    private static List<Map<String, Object>> groups(Map<String, AverageAccumulator> partialsByDenomination,
+                                                    HypothesisCatalog.Hypothesis hypothesis, List<Group> groups) {
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (Group group : groups) {
+            List<String> present = new ArrayList<>();
+            List<AverageAccumulator> partials = new ArrayList<>();
+            partialsByDenomination.forEach((denomination, partial) -> {
+                if (group.contains(denomination)) {
+                    present.add(denomination);
+                    partials.add(partial);
+                }
+            });
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("group", group.label());
+            result.put("denominations", present);
+            if (partials.isEmpty()) {
+                result.put("count", 0);
+                result.put("bySubmissions", null);
+                result.put("byDenomination", null);
+            } else {
+                AverageAccumulator merged = new AverageAccumulator();
+                partials.forEach(merged::merge);
+                Average bySubmissions = merged.toAverage(hypothesis);
+                bySubmissions.setDenomination(group.label());
+                AverageSnapshots.round(bySubmissions);
+                Average byDenomination = AverageAccumulator.averageOfVariants(partials, hypothesis, group.label());
+                AverageSnapshots.round(byDenomination);
+                result.put("count", merged.getCount());
+                result.put("bySubmissions", bySubmissions);
+                result.put("byDenomination", byDenomination);
+            }
+            results.add(result);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,118 @@
+package msit.apologetikk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Coalesces requests for writing averages to disk. Dirty hypotheses (and the variants that changed within them) are
+ * collected in a set, and a single worker thread flushes them once no new changes have arrived for debounceMillis,
+ * but never later than maxDelayMillis after the first change. Since there is only one worker, at most one run
+ * (flush or full rebuild) is in flight at any time, and a burst of submissions results in one write per average.json.
+ * The worker is a virtual thread when the request threads are (spring.threads.virtual.enabled).
+ */
+class AverageScheduler {
+
+    // run() does a full rebuild, flush() writes the averages for the changed variants of one hypothesis
+    interface Job extends Runnable {
+        void flush(String hypothesis, Set<String> denominations);
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(AverageScheduler.class);
+
+    private final Job job;
+    private final long debounceMillis;
+    private final long maxDelayMillis;
+    private final ScheduledThreadPoolExecutor executor;
+
+    // Alt under er beskyttet av "this"
+    private Map<String, Set<String>> dirty = new HashMap<>();
+    private boolean rebuildRequested;
+    private boolean scheduled;
+    private long firstMarkAt;
+    private long lastMarkAt;
+
+    AverageScheduler(Job job, long debounceMillis, long maxDelayMillis, boolean virtualThread) {
+        this.job = job;
+        this.debounceMillis = Math.max(0, debounceMillis);
+        this.maxDelayMillis = Math.max(this.debounceMillis, maxDelayMillis);
+        ThreadFactory threads = virtualThread
+                ? Thread.ofVirtual().name("average-scheduler").factory()
+                : Thread.ofPlatform().name("average-scheduler").daemon(true).factory();
+        this.executor = new ScheduledThreadPoolExecutor(1, threads);
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    synchronized void markDirty(String hypothesis, String denomination) {
+        dirty.computeIfAbsent(hypothesis, k -> new HashSet<>()).add(denomination);
+        schedule();
+    }
+
+    synchronized void requestRebuild() {
+        rebuildRequested = true;
+        schedule();
+    }
+
+    // Kjører det som ligger i kø med en gang og venter til det er skrevet (brukes ved nedstenging)
+    void shutdown() {
+        executor.execute(this::runPending);
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("AverageScheduler ble ikke ferdig med å skrive gjennomsnitt før nedstenging");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void schedule() {
+        long now = System.currentTimeMillis();
+        lastMarkAt = now;
+        if (!scheduled) {
+            scheduled = true;
+            firstMarkAt = now;
+            executor.schedule(this::tick, debounceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void tick() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long due = Math.min(lastMarkAt + debounceMillis, firstMarkAt + maxDelayMillis);
+            if (now < due) { // Nye endringer har kommet inn - vent litt til, men ikke lenger enn maxDelayMillis
+                executor.schedule(this::tick, due - now, TimeUnit.MILLISECONDS);
+                return;
+            }
+            scheduled = false;
+        }
+        runPending();
+    }
+
+    private void runPending() {
+        boolean rebuild;
+        Map<String, Set<String>> batch;
+        synchronized (this) {
+            rebuild = rebuildRequested;
+            batch = dirty;
+            rebuildRequested = false;
+            dirty = new HashMap<>();
+        }
+        try {
+            if (rebuild) {
+                job.run(); // En full gjenoppbygging skriver alle gjennomsnitt, så batch trengs ikke
+                return;
+            }
+            batch.forEach(job::flush);
+        } catch (Exception e) {
+            log.error("Feil under skriving av gjennomsnitt: " + e.getMessage(), e);
+        }
+    }
+}
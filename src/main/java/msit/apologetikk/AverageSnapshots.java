@@ -0,0 +1,251 @@
+package msit.apologetikk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The published averages of each hypothesis as an immutable, versioned snapshot: the complete /api/average response,
+ * the averages it was built from, and the per-denomination partials that AverageRollup merges into group averages.
+ * AverageCalculator publishes a new snapshot each time it has new averages for a hypothesis, and readers get the latest
+ * one from a ConcurrentHashMap without locking and without touching the disk.
+ *
+ * Every snapshot gets a new version from one counter, so a version is never reused for other content - not for another
+ * hypothesis, and not after a restart, since the counter starts at the clock in microseconds. It is used for ETags.
+ *
+ * The average.json files are still written, for other tools and so the API has something to serve right after a
+ * restart. Each file is written to a temp file in the same directory and renamed over the old one, so nobody reading the
+ * files sees a half-written average.json. They are not fsync-ed: the full rebuild at startup writes them all again.
+ */
+@Component
+public class AverageSnapshots {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final Logger log = LoggerFactory.getLogger(AverageSnapshots.class);
+
+    private static final String AVERAGE_FILE = "average.json";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Rekkefølgen variantene har i /api/average (og i stats.html) - ukjente denominasjoner havner på "Other"
+    private static final List<String> canonicalOrder = List.of(
+            "All", "Catholic", "Eastern-Orthodox",
+            "Oriental-Orthodox", "Lutheran", "Reformed",
+            "Anglican", "Baptist", "Methodist", "Evangelical",
+            "Non-denominational", "Adventist", "JW", "LDS",
+            "Jewish", "Muslim", "Hindu", "Buddhist", "New-Age",
+            "Spiritual", "Agnostic", "Atheist", "Other"
+    );
+
+    /* One published version of the averages of a hypothesis. json is the /api/average response; all and variants are
+     * the averages in it (variants by denomination) and are only kept to build the next version from. partials are
+     * copies of the accumulators per denomination and buckets the same results split by time, never changed after
+     * publishing. Both are null for a snapshot loaded from average.json at startup, until the first rebuild has
+     * published a new one. */
+    record Snapshot(String hypothesis, long version, long publishedAt, byte[] json,
+                    JsonNode all, Map<String, JsonNode> variants, Map<String, AverageAccumulator> partials,
+                    Map<String, TimeBuckets> buckets) {
+    }
+
+    private final Path root;
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    public AverageSnapshots() {
+        this(Paths.get("data"));
+    }
+
+    AverageSnapshots(Path root) {
+        this.root = root;
+        loadPublished();
+    }
+
+    // The latest snapshot of the hypothesis, or null if nothing has been published for it yet
+    Snapshot get(String hypothesis) {
+        return snapshots.get(hypothesis);
+    }
+
+    /* Writes average.json for the given variants and for "All", and publishes a snapshot with them. With replace the
+     * new snapshot has only these variants (a full rebuild), otherwise they replace or are added to the ones in the
+     * previous snapshot. partials and buckets have the accumulators and time buckets of the same variants, and must not
+     * be changed afterwards. Only one thread publishes a given hypothesis at a time - the AverageScheduler worker. */
+    void publish(String hypothesis, Map<String, Average> variants, Average all, Map<String, AverageAccumulator> partials,
+                 Map<String, TimeBuckets> buckets, boolean replace) {
+        Path hypotesemappe = root.resolve(hypothesis);
+        Map<String, JsonNode> written = new TreeMap<>();
+        variants.forEach((denomination, avg) -> written.put(denomination, write(hypotesemappe.resolve(denomination), avg)));
+        JsonNode allNode = write(hypotesemappe, all);
+
+        snapshots.compute(hypothesis, (k, previous) -> {
+            Map<String, JsonNode> merged = new TreeMap<>();
+            Map<String, AverageAccumulator> mergedPartials = new TreeMap<>();
+            Map<String, TimeBuckets> mergedBuckets = new TreeMap<>();
+            if (previous != null && !replace) {
+                merged.putAll(previous.variants());
+                if (previous.partials() == null) {
+                    // Resten av variantene finnes bare som average.json - vent på gjenoppbyggingen
+                    mergedPartials = null;
+                    mergedBuckets = null;
+                } else {
+                    mergedPartials.putAll(previous.partials());
+                    mergedBuckets.putAll(previous.buckets());
+                }
+            }
+            merged.putAll(written);
+            if (mergedPartials != null) {
+                mergedPartials.putAll(partials);
+                mergedBuckets.putAll(buckets);
+            }
+            return snapshot(hypothesis, allNode, merged, mergedPartials, mergedBuckets);
+        });
+    }
+
+    private Snapshot snapshot(String hypothesis, JsonNode all, Map<String, JsonNode> variants,
+                              Map<String, AverageAccumulator> partials, Map<String, TimeBuckets> buckets) {
+        List<JsonNode> averages = new ArrayList<>();
+        averages.add(all);
+        averages.addAll(variants.values());
+        long version = versions.incrementAndGet();
+        try {
+            byte[] json = MAPPER.writeValueAsBytes(Map.of(
+                    "status", "ok",
+                    "hypothesis", hypothesis,
+                    "version", version,
+                    "count", averages.size(),
+                    "averages", sortAverages(averages)
+            ));
+            return new Snapshot(hypothesis, version, System.currentTimeMillis(), json, all,
+                    Collections.unmodifiableMap(variants), partials == null ? null : Collections.unmodifiableMap(partials),
+                    buckets == null ? null : Collections.unmodifiableMap(buckets));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Skriver average.json atomisk (temp-fil + rename) og returnerer gjennomsnittet slik det ble skrevet
+    private static JsonNode write(Path variantmappe, Average avg) {
+        try {
+            Files.createDirectories(variantmappe);
+            Path averagePath = variantmappe.resolve(AVERAGE_FILE);
+            round(avg);
+            JsonNode node = MAPPER.valueToTree(avg);
+            Path tmp = Files.createTempFile(variantmappe, AVERAGE_FILE + ".", TEMP_SUFFIX);
+            try {
+                MAPPER.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), node);
+                Files.move(tmp, averagePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp); // Bare hvis noe gikk galt før rename
+            }
+            // Print to stdout on the form of 2025-09-21T14:15:40.187Z Text
+            log.info("\tLaget " + averagePath);
+            return node;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Avrund alle double-verdier til 0 desimaler og gjør dem til integer, slik de skrives til average.json
+    static void round(Average avg) {
+        avg.setAprioriPct(Math.round(avg.getAprioriPct()));
+        avg.setPosteriorPct(Math.round(avg.getPosteriorPct()));
+        for (Evidence ev : avg.getEvidence()) {
+            ev.setPehPct(Math.round(ev.getPehPct()));
+            ev.setPenhPct(Math.round(ev.getPenhPct()));
+        }
+    }
+
+    // Publiserer average.json som ligger på disk fra forrige kjøring, slik at API-et har svar før første gjenoppbygging er ferdig.
+    // Temp-filer etter en krasj midt i en skriving slettes. En hypotese med en fil som ikke kan leses hoppes over - den
+    // publiseres av gjenoppbyggingen - uten at det stopper innlastingen av de andre
+    private void loadPublished() {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (DirectoryStream<Path> hypotheses = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path hypotesemappe : hypotheses) {
+                try {
+                    loadPublished(hypotesemappe);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Kunne ikke lese publiserte gjennomsnitt fra " + hypotesemappe + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Kunne ikke lese publiserte gjennomsnitt fra " + root + ": " + e.getMessage());
+        }
+        log.info("AverageSnapshots lastet " + snapshots.size() + " hypoteser fra " + root);
+    }
+
+    private void loadPublished(Path hypotesemappe) throws IOException {
+        deleteTempFiles(hypotesemappe);
+        Path allPath = hypotesemappe.resolve(AVERAGE_FILE);
+        if (!Files.isRegularFile(allPath)) {
+            return;
+        }
+        JsonNode all = readAverage(allPath);
+        Map<String, JsonNode> variants = new TreeMap<>();
+        try (DirectoryStream<Path> denominations = Files.newDirectoryStream(hypotesemappe, Files::isDirectory)) {
+            for (Path variantmappe : denominations) {
+                deleteTempFiles(variantmappe);
+                Path variantPath = variantmappe.resolve(AVERAGE_FILE);
+                if (Files.isRegularFile(variantPath)) {
+                    variants.put(variantmappe.getFileName().toString(), readAverage(variantPath));
+                }
+            }
+        }
+        String hypothesis = hypotesemappe.getFileName().toString();
+        snapshots.put(hypothesis, snapshot(hypothesis, all, variants, null, null));
+    }
+
+    // En tom fil gir ingen feil fra Jackson, så den sjekkes her
+    private static JsonNode readAverage(Path path) throws IOException {
+        JsonNode average = MAPPER.readTree(path.toFile());
+        if (average == null || !average.isObject()) {
+            throw new IOException(path + " er tom eller ufullstendig");
+        }
+        return average;
+    }
+
+    private static void deleteTempFiles(Path dir) throws IOException {
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(dir, AVERAGE_FILE + ".*" + TEMP_SUFFIX)) {
+            for (Path tmp : temps) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    private static List<JsonNode> sortAverages(List<JsonNode> averages) {
+        // Sorter etter denomination i canonicalOrder
+        // Vi lager sorted-list med like mange elementer som canonicalOrder
+        List<JsonNode> sorted = new ArrayList<>();
+        for (int i = 0; i < canonicalOrder.size(); i++) {
+            sorted.add(null);
+        }
+        for (JsonNode jsonNode : averages) {
+            String denom = jsonNode.path("denomination").asText("Other");
+            int index = canonicalOrder.indexOf(denom);
+            if (index == -1) index = canonicalOrder.size() - 1; // Sett til "Other"
+            sorted.set(index, jsonNode);
+        }
+        // Fjern null-verdier
+        sorted.removeIf(Objects::isNull);
+        return sorted;
+    }
+}
@@ -0,0 +1,290 @@
+package msit.apologetikk;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Server-Sent Events for GET /api/average/stream. Every subscriber gets the complete /api/average response for its
+ * hypothesis (event "average", id = the ETag) when it subscribes and each time AverageCalculator publishes new averages
+ * for the hypothesis. The response comes from AverageCache, so one change is built once no matter how many listen.
+ *
+ * Updates are coalesced per subscriber: at most one event is being sent to a subscriber at a time, and changes that
+ * arrive meanwhile only mark it dirty, so a slow client gets the newest snapshot when it is ready instead of a growing
+ * backlog. A comment is sent every heartbeat-ms to keep proxies from closing idle streams and to detect dead clients.
+ *
+ * Events and heartbeats are both sent on the sending pool, one task per subscriber, so a client that stops reading
+ * holds at most one thread. A subscriber whose send has not finished after send-timeout-ms is dropped by a separate
+ * watchdog thread and gets nothing more. Its thread stays blocked until the server gives up on the write, so the pool
+ * gets an extra thread meanwhile - the other subscribers always have threads threads.
+ */
+@Component
+public class AverageStream {
+
+    private static final Logger log = LoggerFactory.getLogger(AverageStream.class);
+
+    private final AverageCache averageCache;
+    private final long timeoutMillis;
+    private final int maxSubscribers;
+    private final ScheduledThreadPoolExecutor executor;
+    // Heartbeat og vakthund - sender aldri selv, så den kan ikke bli stående fast på en klient
+    private final ScheduledThreadPoolExecutor watchdog;
+    private final long sendTimeoutNanos;
+    private final Map<String, List<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+
+    public AverageStream(AverageCalculator averageCalculator, AverageCache averageCache,
+                         @Value("${apologetikk.average-stream.threads:4}") int threads,
+                         @Value("${apologetikk.average-stream.timeout-ms:1800000}") long timeoutMillis,
+                         @Value("${apologetikk.average-stream.heartbeat-ms:30000}") long heartbeatMillis,
+                         @Value("${apologetikk.average-stream.max-subscribers:1000}") int maxSubscribers,
+                         @Value("${apologetikk.average-stream.send-timeout-ms:10000}") long sendTimeoutMillis,
+                         MeterRegistry registry) {
+        this.averageCache = averageCache;
+        this.timeoutMillis = timeoutMillis;
+        this.maxSubscribers = maxSubscribers;
+        this.sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis);
+        // Plattformtråder også når forespørslene kjører på virtuelle tråder: SseEmitter.send() er synchronized og skriver
+        // til klienten mens den holder monitoren, så en virtuell tråd ville blitt låst til bærertråden under hver sending
+        this.executor = new ScheduledThreadPoolExecutor(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "average-stream");
+            t.setDaemon(true);
+            return t;
+        });
+        this.watchdog = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "average-stream-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        if (heartbeatMillis > 0) {
+            watchdog.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+        if (sendTimeoutMillis > 0) {
+            long period = Math.max(1, sendTimeoutMillis / 2);
+            watchdog.scheduleWithFixedDelay(this::dropStalled, period, period, TimeUnit.MILLISECONDS);
+        }
+        // AverageCache registrerer seg først (den er en avhengighet av oss), så cachen er tømt før vi sender
+        averageCalculator.onAveragesWritten(this::changed);
+        Gauge.builder("apologetikk.average.stream.subscribers", subscriberCount, AtomicInteger::get)
+                .description("Open /api/average/stream connections")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void stop() {
+        watchdog.shutdownNow();
+        executor.shutdownNow();
+        subscribers.values().forEach(list -> list.forEach(s -> s.emitter.complete()));
+    }
+
+    // Opens a stream for the hypothesis. Throws RejectedExecutionException when there are too many open streams.
+    public SseEmitter subscribe(String hypothesis, AverageCache.Loader loader) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            throw new RejectedExecutionException("Too many open streams");
+        }
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Subscriber subscriber = new Subscriber(hypothesis, emitter, loader);
+        subscribers.computeIfAbsent(hypothesis, k -> new CopyOnWriteArrayList<>()).add(subscriber);
+        emitter.onCompletion(subscriber::remove);
+        emitter.onTimeout(subscriber::remove);
+        emitter.onError(t -> subscriber.remove());
+        subscriber.changed(); // Første hendelse er gjeldende gjennomsnitt
+        return emitter;
+    }
+
+    private void changed(String hypothesis) {
+        List<Subscriber> list = subscribers.get(hypothesis);
+        if (list != null) {
+            list.forEach(Subscriber::changed);
+        }
+    }
+
+    private void heartbeat() {
+        for (List<Subscriber> list : subscribers.values()) {
+            for (Subscriber subscriber : list) {
+                subscriber.heartbeat();
+            }
+        }
+    }
+
+    // Én tråd mer i poolen for hver sending som står fast, til den er ferdig
+    private synchronized void resizeSenders(int delta) {
+        executor.setCorePoolSize(executor.getCorePoolSize() + delta);
+    }
+
+    private void dropStalled() {
+        long now = System.nanoTime();
+        for (List<Subscriber> list : subscribers.values()) {
+            for (Subscriber subscriber : list) {
+                subscriber.dropIfStalled(now);
+            }
+        }
+    }
+
+    private final class Subscriber {
+        private final String hypothesis;
+        private final SseEmitter emitter;
+        private final AverageCache.Loader loader;
+
+        // Beskyttet av "this"
+        private boolean sending;
+        private boolean dirty;
+        private boolean heartbeatDue;
+        private boolean removed;
+        private boolean stalled;
+        private long sendStartedAt; // System.nanoTime() da emitter.send() ble kalt, 0 når ingen sending pågår
+        private String lastETag;
+
+        Subscriber(String hypothesis, SseEmitter emitter, AverageCache.Loader loader) {
+            this.hypothesis = hypothesis;
+            this.emitter = emitter;
+            this.loader = loader;
+        }
+
+        void changed() {
+            synchronized (this) {
+                if (removed) {
+                    return;
+                }
+                dirty = true;
+                if (sending) {
+                    return; // Sendes når den pågående sendingen er ferdig
+                }
+                sending = true;
+            }
+            schedule();
+        }
+
+        void heartbeat() {
+            synchronized (this) {
+                if (removed) {
+                    return;
+                }
+                heartbeatDue = true;
+                if (sending) {
+                    return; // Klienten får noe snart uansett, eller blir droppet av dropStalled
+                }
+                sending = true;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this::sendLatest);
+            } catch (RejectedExecutionException shuttingDown) {
+                remove();
+            }
+        }
+
+        private void sendLatest() {
+            try {
+                while (true) {
+                    boolean sendAverage;
+                    boolean sendHeartbeat;
+                    synchronized (this) {
+                        if (removed) {
+                            if (!stalled) {
+                                return;
+                            }
+                            break;
+                        }
+                        if (!dirty && !heartbeatDue) {
+                            sending = false;
+                            return;
+                        }
+                        sendAverage = dirty;
+                        sendHeartbeat = heartbeatDue && !dirty; // En hendelse holder forbindelsen like godt i live
+                        dirty = false;
+                        heartbeatDue = false;
+                    }
+                    if (sendAverage) {
+                        AverageCache.Entry entry = averageCache.get(hypothesis, loader);
+                        if (entry != null && !entry.etag().equals(lastETag)) {
+                            send(SseEmitter.event()
+                                    .name("average")
+                                    .id(entry.etag())
+                                    .data(new String(entry.json(), StandardCharsets.UTF_8)));
+                            lastETag = entry.etag();
+                        }
+                    } else if (sendHeartbeat) {
+                        send(SseEmitter.event().comment("heartbeat"));
+                    }
+                }
+                // Droppet av dropStalled mens vi sendte - avsluttes her, siden emitter er opptatt til sendingen er ferdig
+                resizeSenders(-1);
+                emitter.complete();
+            } catch (IOException | IllegalStateException gone) {
+                // Klienten har koblet fra
+                remove();
+                boolean wasStalled;
+                synchronized (this) {
+                    wasStalled = stalled;
+                }
+                if (wasStalled) {
+                    resizeSenders(-1);
+                }
+                emitter.completeWithError(gone);
+            }
+        }
+
+        private void send(SseEmitter.SseEventBuilder event) throws IOException {
+            synchronized (this) {
+                sendStartedAt = System.nanoTime();
+            }
+            try {
+                emitter.send(event);
+            } finally {
+                synchronized (this) {
+                    sendStartedAt = 0;
+                }
+            }
+        }
+
+        // Kalles av vakthunden. Kaller ikke emitter selv, siden den er låst av sendingen som står fast
+        void dropIfStalled(long now) {
+            synchronized (this) {
+                if (removed || sendStartedAt == 0 || now - sendStartedAt < sendTimeoutNanos) {
+                    return;
+                }
+                stalled = true;
+            }
+            log.info("Stream for " + hypothesis + " droppet: sendingen har stått i over "
+                    + TimeUnit.NANOSECONDS.toMillis(sendTimeoutNanos) + " ms");
+            remove();
+            resizeSenders(1);
+        }
+
+        void remove() {
+            synchronized (this) {
+                if (removed) {
+                    return;
+                }
+                removed = true;
+            }
+            List<Subscriber> list = subscribers.get(hypothesis);
+            if (list != null) {
+                list.remove(this);
+            }
+            subscriberCount.decrementAndGet();
+            log.debug("Stream for " + hypothesis + " lukket");
+        }
+    }
+}
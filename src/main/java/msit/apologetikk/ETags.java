@@ -0,0 +1,26 @@
+package msit.apologetikk;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// Sterke ETags laget av en hash av innholdet - samme innhold gir samme ETag, også etter omstart - eller av versjonen til
+// et AverageSnapshots-øyeblikksbilde, som aldri gjenbrukes for annet innhold
+final class ETags {
+
+    private ETags() {
+    }
+
+    static String of(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            return "\"" + HexFormat.of().formatHex(digest, 0, 16) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String ofVersion(long version) {
+        return "\"v" + version + "\"";
+    }
+}
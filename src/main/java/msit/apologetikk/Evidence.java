@@ -1,40 +1,24 @@
 package msit.apologetikk;
 
-import com.fasterxml.jackson.annotation.JsonIgnore;
-
+// One evidence in an Average, as it is written to average.json
 public class Evidence {
     private int count;
     private int countDisregard;
     private int id;
     private String head;
-    private Double pehPct;
-    private Double penhPct;
+    private double pehPct;
+    private double penhPct;
     private int weight;
-    @JsonIgnore
-    private Double weightD;
 
     public Evidence() {
     }
 
-    // simple constructor - only used for keeping track of number of evidences in the original hypothesis file
+    // simple constructor - used for the evidences in the original hypothesis file, and as a start for the views
     public Evidence(int id, String head) {
         this.id = id;
         this.head = head;
     }
 
-
-    // copy constructor
-    public Evidence(Evidence other) {
-        this.count = other.count;
-        this.countDisregard = other.countDisregard;
-        this.id = other.id;
-        this.head = other.head;
-        this.pehPct = other.pehPct;
-        this.penhPct = other.penhPct;
-        this.weight = other.weight;
-        this.weightD = other.weightD == null ? other.weight : other.weightD;
-    }
-
     // getters / setters
     public int getCount() {
         return count;
@@ -72,7 +56,7 @@ public class Evidence {
         this.head = head;
     }
 
-    public Double getPehPct() {
+    public double getPehPct() {
         return pehPct;
     }
 
@@ -80,7 +64,7 @@ public class Evidence {
         this.pehPct = pehPct;
     }
 
-    public Double getPenhPct() {
+    public double getPenhPct() {
         return penhPct;
     }
 
@@ -95,14 +79,4 @@ public class Evidence {
     public void setWeight(int weight) {
         this.weight = weight;
     }
-
-    // weightD is a double representation of weight for more precise calculations - not serialized to JSON, it will be
-    // converted to int before serialization
-    public Double getWeightD() {
-        return weightD;
-    }
-
-    public void setWeightD(double weightD) {
-        this.weightD = weightD;
-    }
 }
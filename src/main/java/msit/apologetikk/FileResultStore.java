@@ -0,0 +1,141 @@
+package msit.apologetikk;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+// The original layout: one file per result, data/<hypothesis>/<denomination>/<id>.json, found by id through ResultIndex.
+// After a crash ResultIndex adds the files it is missing at startup, so a lookup never has to touch the data directory
+@Component
+@ConditionalOnProperty(name = "apologetikk.store", havingValue = "files", matchIfMissing = true)
+public class FileResultStore implements ResultStore {
+
+    private final Path root;
+    private final ResultIndex index;
+    // Filer og mapper skrevet siden forrige sync()
+    private final Set<Path> unsynced = new LinkedHashSet<>();
+
+    public FileResultStore() {
+        this(Paths.get("data"));
+    }
+
+    FileResultStore(Path root) {
+        this.root = root;
+        this.index = new ResultIndex(root);
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        index.load();
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        index.close();
+    }
+
+    @Override
+    public void save(UUID id, String hypothesis, String denomination, long savedAt, byte[] json) throws IOException {
+        Path dir = root.resolve(hypothesis).resolve(denomination);
+        Files.createDirectories(dir);
+        Path file = dir.resolve(id + ".json");
+        Files.write(file, json);
+        index.add(id, hypothesis, denomination);
+        synchronized (unsynced) {
+            unsynced.add(file);
+            unsynced.add(dir);
+        }
+    }
+
+    // Hver fil må fsync-es for seg, og mappen den ligger i for at selve filoppføringen skal være trygg
+    @Override
+    public void sync() throws IOException {
+        List<Path> paths;
+        synchronized (unsynced) {
+            paths = new ArrayList<>(unsynced);
+            unsynced.clear();
+        }
+        for (Path path : paths) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+        }
+        index.sync();
+    }
+
+    @Override
+    public boolean contains(UUID id) {
+        return index.get(id) != null;
+    }
+
+    @Override
+    public byte[] find(UUID id) throws IOException {
+        ResultIndex.Location location = index.get(id);
+        if (location == null) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(root.resolve(location.hypothesis()).resolve(location.denomination()).resolve(id + ".json"));
+        } catch (NoSuchFileException gone) {
+            return null;
+        }
+    }
+
+    @Override
+    public List<String> hypotheses() {
+        return directoryNames(root.toFile());
+    }
+
+    @Override
+    public List<String> denominations(String hypothesis) {
+        return directoryNames(root.resolve(hypothesis).toFile());
+    }
+
+    @Override
+    public void scan(String hypothesis, String denomination, ResultVisitor visitor) throws IOException {
+        File variantmappe = root.resolve(hypothesis).resolve(denomination).toFile();
+        File[] jsonFiles = variantmappe.listFiles((dir, name) -> name.endsWith(".json") && !name.equals("average.json")); // Hopp over tidligere genererte average.json filer
+        if (jsonFiles == null) {
+            return;
+        }
+        Arrays.sort(jsonFiles);
+        for (File jsonFile : jsonFiles) {
+            String name = jsonFile.getName();
+            UUID id;
+            try {
+                id = UUID.fromString(name.substring(0, name.length() - ".json".length()));
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            visitor.accept(id, jsonFile.lastModified(), Files.readAllBytes(jsonFile.toPath()));
+        }
+    }
+
+    private static List<String> directoryNames(File dir) {
+        File[] dirs = dir.listFiles(File::isDirectory);
+        List<String> names = new ArrayList<>();
+        if (dirs != null) {
+            for (File d : dirs) {
+                names.add(d.getName());
+            }
+        }
+        names.sort(null);
+        return names;
+    }
+}
@@ -0,0 +1,174 @@
+package msit.apologetikk;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * The hypotheses in static/evidence/*.json, read once at startup. Only the title and the id and head of each evidence
+ * are kept - the files are read with a streaming parser that skips the long texts and link lists. The catalog is
+ * immutable, so the averaging job and the API can share it without locking.
+ */
+@Component
+public class HypothesisCatalog {
+
+    private static final Logger log = LoggerFactory.getLogger(HypothesisCatalog.class);
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    // Evidens-id-er brukes som indeks i en tabell, så de må være små
+    private static final int MAX_EVIDENCE_ID = 1 << 16;
+
+    /* One hypothesis: the evidences in the order they are declared in the file, and a table from evidence id to that
+     * position. */
+    public static final class Hypothesis {
+        private final String name;
+        private final String title;
+        private final int[] ids;
+        private final String[] heads;
+        private final int[] indexById; // indexById[id] = posisjon + 1, 0 betyr at id-en ikke finnes
+
+        private Hypothesis(String name, String title, int[] ids, String[] heads) throws IOException {
+            this.name = name;
+            this.title = title;
+            this.ids = ids;
+            this.heads = heads;
+            int maxId = Arrays.stream(ids).max().orElse(-1);
+            this.indexById = new int[maxId + 1];
+            for (int i = 0; i < ids.length; i++) {
+                if (indexById[ids[i]] != 0) {
+                    throw new IOException("Duplicate evidence id " + ids[i] + " in hypothesis " + name);
+                }
+                indexById[ids[i]] = i + 1;
+            }
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public String title() {
+            return title;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        public int id(int index) {
+            return ids[index];
+        }
+
+        // Null for evidences without a head in the file
+        public String head(int index) {
+            return heads[index];
+        }
+
+        // Position of the evidence with this id, or -1 if the hypothesis has no such evidence
+        public int indexOf(int id) {
+            return id >= 0 && id < indexById.length ? indexById[id] - 1 : -1;
+        }
+    }
+
+    private final Map<String, Hypothesis> hypotheses;
+
+    public HypothesisCatalog() throws IOException {
+        this("classpath:static/evidence/*.json");
+    }
+
+    HypothesisCatalog(String locationPattern) throws IOException {
+        Map<String, Hypothesis> loaded = new TreeMap<>();
+        for (Resource resource : new PathMatchingResourcePatternResolver().getResources(locationPattern)) {
+            String filename = resource.getFilename();
+            if (filename == null || !filename.endsWith(".json") || StaticAssets.isHashed(filename)) {
+                continue; // De hashede kopiene fra byggingen er samme hypotese en gang til
+            }
+            String name = filename.substring(0, filename.length() - ".json".length());
+            try (InputStream in = resource.getInputStream()) {
+                loaded.put(name, parse(name, in));
+            }
+        }
+        this.hypotheses = Collections.unmodifiableMap(loaded);
+        log.info("HypothesisCatalog lastet med " + hypotheses.size() + " hypoteser");
+    }
+
+    // Returns the hypothesis, or null if there is no static/evidence/<name>.json
+    public Hypothesis get(String name) {
+        return name == null ? null : hypotheses.get(name);
+    }
+
+    public boolean contains(String name) {
+        return get(name) != null;
+    }
+
+    // Hypothesis names in sorted order
+    public List<String> names() {
+        return List.copyOf(hypotheses.keySet());
+    }
+
+    private static Hypothesis parse(String name, InputStream in) throws IOException {
+        String title = null;
+        List<Integer> ids = new ArrayList<>();
+        List<String> heads = new ArrayList<>();
+        try (JsonParser parser = JSON.createParser(in)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT, name);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals("title") && value == JsonToken.VALUE_STRING) {
+                    title = parser.getText();
+                } else if (field.equals("evidence")) {
+                    expect(parser, value, JsonToken.START_ARRAY, name);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        parseEvidence(parser, name, ids, heads);
+                    }
+                } else {
+                    parser.skipChildren(); // intro o.l.
+                }
+            }
+        }
+        int[] idArray = ids.stream().mapToInt(Integer::intValue).toArray();
+        return new Hypothesis(name, title, idArray, heads.toArray(new String[0]));
+    }
+
+    private static void parseEvidence(JsonParser parser, String name, List<Integer> ids, List<String> heads) throws IOException {
+        Integer id = null;
+        String head = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals("id") && value == JsonToken.VALUE_NUMBER_INT) {
+                id = parser.getIntValue();
+            } else if (field.equals("head") && value == JsonToken.VALUE_STRING) {
+                head = parser.getText();
+            } else {
+                parser.skipChildren(); // details, modern, bible osv.
+            }
+        }
+        if (id == null || id < 0 || id >= MAX_EVIDENCE_ID) {
+            throw new IOException("Missing or invalid evidence id in hypothesis " + name + " near " + parser.currentLocation());
+        }
+        ids.add(id);
+        heads.add(head); // Noen hypoteser (f.eks. annihilationism) har evidenser uten "head"
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected, String name) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " in hypothesis " + name + " but found " + actual + " at " + parser.currentLocation());
+        }
+    }
+}
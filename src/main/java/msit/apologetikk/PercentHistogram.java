@@ -0,0 +1,196 @@
+package msit.apologetikk;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The distribution of one percentage (0-100) over the results in an AverageAccumulator: one counter per whole percent,
+ * so two histograms are merged by adding the counters, and quantiles are exact for whole percentages. Values are
+ * rounded to the nearest whole percent and clamped to 0-100.
+ *
+ * Most day buckets in TimeBuckets have only a few results, so a histogram first keeps the values themselves (one byte
+ * each), and only switches to the 101 counters when there are more than SPARSE_LIMIT of them.
+ *
+ * write/read give the compact form used for the partials shared between nodes (see SharedPartials): the values
+ * themselves while there are few of them, else only the counters that are not 0.
+ */
+final class PercentHistogram {
+
+    static final int BINS = 101;
+    private static final int SPARSE_LIMIT = 32;
+
+    private long count;
+    // Verdiene hver for seg, til det er flere enn SPARSE_LIMIT - deretter null, og counts brukes
+    private byte[] values = new byte[4];
+    private int[] counts;
+
+    PercentHistogram() {
+    }
+
+    PercentHistogram(PercentHistogram other) {
+        merge(other);
+    }
+
+    long count() {
+        return count;
+    }
+
+    void add(double pct) {
+        add(percent(pct), 1);
+    }
+
+    void merge(PercentHistogram other) {
+        if (other.counts != null) {
+            if (counts == null) {
+                counts = toCounts();
+                values = null;
+            }
+            for (int v = 0; v < BINS; v++) {
+                counts[v] += other.counts[v];
+            }
+            count += other.count;
+        } else {
+            for (int i = 0; i < other.count; i++) {
+                add(other.values[i], 1);
+            }
+        }
+    }
+
+    private void add(int percent, int n) {
+        if (counts == null && count + n > SPARSE_LIMIT) {
+            counts = toCounts();
+            values = null;
+        }
+        if (counts != null) {
+            counts[percent] += n;
+        } else {
+            if (count + n > values.length) {
+                values = Arrays.copyOf(values, Math.min(SPARSE_LIMIT, Math.max(values.length * 2, (int) count + n)));
+            }
+            Arrays.fill(values, (int) count, (int) count + n, (byte) percent);
+        }
+        count += n;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeLong(count);
+        if (counts == null) {
+            out.write(values, 0, (int) count);
+            return;
+        }
+        int nonZero = 0;
+        for (int v = 0; v < BINS; v++) {
+            nonZero += counts[v] != 0 ? 1 : 0;
+        }
+        out.writeByte(nonZero);
+        for (int v = 0; v < BINS; v++) {
+            if (counts[v] != 0) {
+                out.writeByte(v);
+                out.writeInt(counts[v]);
+            }
+        }
+    }
+
+    static PercentHistogram read(DataInput in) throws IOException {
+        PercentHistogram histogram = new PercentHistogram();
+        long count = in.readLong();
+        if (count < 0) {
+            throw new IOException("Negative count in histogram: " + count);
+        }
+        if (count <= SPARSE_LIMIT) {
+            for (int i = 0; i < count; i++) {
+                histogram.add(bin(in.readUnsignedByte()), 1);
+            }
+            return histogram;
+        }
+        histogram.counts = new int[BINS];
+        histogram.values = null;
+        int nonZero = in.readUnsignedByte();
+        for (int i = 0; i < nonZero; i++) {
+            histogram.counts[bin(in.readUnsignedByte())] = in.readInt();
+        }
+        histogram.count = count;
+        return histogram;
+    }
+
+    private static int bin(int v) throws IOException {
+        if (v >= BINS) {
+            throw new IOException("Histogram bin out of range: " + v);
+        }
+        return v;
+    }
+
+    private int[] toCounts() {
+        int[] dense = new int[BINS];
+        if (counts != null) {
+            System.arraycopy(counts, 0, dense, 0, BINS);
+        } else {
+            for (int i = 0; i < count; i++) {
+                dense[values[i]]++;
+            }
+        }
+        return dense;
+    }
+
+    private static int percent(double pct) {
+        if (Double.isNaN(pct)) {
+            return 0;
+        }
+        return (int) Math.max(0, Math.min(100, Math.round(pct)));
+    }
+
+    /* The distribution as it is written to /api/average/distribution: min, max and percentiles (nearest rank), and
+     * the counts in the given number of equally wide bins - bin i starts at the percentage ceil(i * 100 / bins), so
+     * bins=10 gives 0-9, 10-19, ..., 90-100, and bins=101 one bin per percent. Null if there are no values. */
+    Map<String, Object> summary(int bins) {
+        if (count == 0) {
+            return null;
+        }
+        int[] dense = toCounts();
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", count);
+        summary.put("min", quantile(dense, 0));
+        summary.put("p10", quantile(dense, 0.10));
+        summary.put("p25", quantile(dense, 0.25));
+        summary.put("median", quantile(dense, 0.50));
+        summary.put("p75", quantile(dense, 0.75));
+        summary.put("p90", quantile(dense, 0.90));
+        summary.put("max", quantile(dense, 1));
+
+        List<Map<String, Object>> histogram = new ArrayList<>(bins);
+        for (int i = 0; i < bins; i++) {
+            int from = (i * 100 + bins - 1) / bins;
+            int to = i == bins - 1 ? 100 : ((i + 1) * 100 + bins - 1) / bins - 1;
+            long n = 0;
+            for (int v = from; v <= to; v++) {
+                n += dense[v];
+            }
+            Map<String, Object> bin = new LinkedHashMap<>();
+            bin.put("from", from);
+            bin.put("to", to);
+            bin.put("count", n);
+            histogram.add(bin);
+        }
+        summary.put("histogram", histogram);
+        return summary;
+    }
+
+    // Den minste verdien som minst q av resultatene er mindre enn eller lik (nearest rank)
+    private int quantile(int[] dense, double q) {
+        long rank = Math.max(1, (long) Math.ceil(q * count));
+        long seen = 0;
+        for (int v = 0; v < BINS; v++) {
+            seen += dense[v];
+            if (seen >= rank) {
+                return v;
+            }
+        }
+        return 100;
+    }
+}
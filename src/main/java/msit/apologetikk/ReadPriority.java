@@ -0,0 +1,53 @@
+package msit.apologetikk;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Lets background work step aside for reads of /api/average. AdmissionControl counts the reads that are being handled,
+ * and the full rebuild in AverageCalculator calls yieldToReads() between every few hundred results: while there are
+ * reads in flight it parks for pause-ms, so the request threads get the CPU. The pause is short and taken at most once
+ * per call, so a steady stream of reads slows a rebuild down but can never stop it.
+ *
+ * Metrics: apologetikk.admission.reads.active (gauge) and apologetikk.admission.background.pauses.
+ */
+@Component
+public class ReadPriority {
+
+    private final AtomicInteger reads = new AtomicInteger();
+    private final long pauseNanos;
+    private final Counter pauses;
+
+    public ReadPriority(@Value("${apologetikk.admission.background-pause-ms:2}") long pauseMillis, MeterRegistry registry) {
+        this.pauseNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, pauseMillis));
+        this.pauses = Counter.builder("apologetikk.admission.background.pauses")
+                .description("Times background work paused because reads of /api/average were being handled")
+                .register(registry);
+        Gauge.builder("apologetikk.admission.reads.active", reads, AtomicInteger::get)
+                .description("Reads of /api/average being handled")
+                .register(registry);
+    }
+
+    void readStarted() {
+        reads.incrementAndGet();
+    }
+
+    void readFinished() {
+        reads.decrementAndGet();
+    }
+
+    // Kalles fra bakgrunnsarbeid: venter pause-ms hvis noen leser gjennomsnitt akkurat nå
+    void yieldToReads() {
+        if (pauseNanos > 0 && reads.get() > 0) {
+            pauses.increment();
+            LockSupport.parkNanos(pauseNanos);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package msit.apologetikk;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * GET /api/results/export: the stored results of a hypothesis (one denomination or all, optionally only those saved
+ * since a given time) streamed from the ResultStore to the client, one result at a time as they are scanned. Nothing
+ * is collected first, so memory does not grow with the number of results, and the response is sent chunked.
+ *
+ *   ndjson - one JSON object per line: the stored result with "id" and "savedAt" (ISO-8601) added first
+ *   csv    - one row per result: id, savedAt, denomination, aprioriPct, posteriorPct, and pehPct, penhPct and weight
+ *            for every evidence in the hypothesis file (empty if the result does not have it)
+ *
+ * The body is written on Spring's async executor, not on a request thread, and ResultStore.scan does not hold the
+ * locks that saving takes while it reads, so submits are not held up by an export. At most max-concurrent exports run
+ * at a time - the rest get 503 - so exports cannot take all the disk and CPU. A result that cannot be parsed is
+ * skipped and logged instead of ending the export half way.
+ *
+ * An export may take much longer than other async responses, so it gets its own timeout (timeout-ms); the default
+ * spring.mvc.async.request-timeout still applies to everything else.
+ */
+@Component
+public class ResultExport {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultExport.class);
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    enum Format {
+        NDJSON("application/x-ndjson", "ndjson"),
+        CSV("text/csv;charset=UTF-8", "csv");
+
+        final String contentType;
+        final String extension;
+
+        Format(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+    }
+
+    private final ResultStore resultStore;
+    private final HypothesisCatalog catalog;
+    private final Semaphore running;
+    private final long timeoutMillis;
+    private final Counter ndjsonRows;
+    private final Counter csvRows;
+    private final Counter skipped;
+
+    public ResultExport(ResultStore resultStore, HypothesisCatalog catalog,
+                        @Value("${apologetikk.export.max-concurrent:2}") int maxConcurrent,
+                        @Value("${apologetikk.export.timeout-ms:3600000}") long timeoutMillis,
+                        MeterRegistry registry) {
+        this.resultStore = resultStore;
+        this.catalog = catalog;
+        this.running = new Semaphore(Math.max(1, maxConcurrent));
+        this.timeoutMillis = timeoutMillis;
+        this.ndjsonRows = rows(registry, Format.NDJSON);
+        this.csvRows = rows(registry, Format.CSV);
+        this.skipped = Counter.builder("apologetikk.results.export.skipped")
+                .description("Stored results left out of exports because they could not be parsed")
+                .register(registry);
+        Gauge.builder("apologetikk.results.export.active", running, s -> Math.max(1, maxConcurrent) - s.availablePermits())
+                .description("Exports being written")
+                .register(registry);
+    }
+
+    private static Counter rows(MeterRegistry registry, Format format) {
+        return Counter.builder("apologetikk.results.export.rows")
+                .tag("format", format.extension)
+                .description("Results written by /api/results/export")
+                .register(registry);
+    }
+
+    /* The body of an export, or null if max-concurrent exports are already running. denomination null means every
+     * denomination of the hypothesis. The slot is taken here and given back once: when the body has been written, or
+     * when the async request ends without it (timeout, error, or the client went away before the body ran). The
+     * request gets timeout-ms as its timeout. */
+    StreamingResponseBody open(String hypothesis, String denomination, long since, Format format, AsyncWebRequest asyncRequest) {
+        if (!running.tryAcquire()) {
+            return null;
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                running.release();
+            }
+        };
+        if (asyncRequest != null) {
+            asyncRequest.setTimeout(timeoutMillis);
+            asyncRequest.addCompletionHandler(release);
+        }
+        return out -> {
+            long start = System.currentTimeMillis();
+            long[] written = new long[1];
+            try {
+                List<String> denominations = denomination != null ? List.of(denomination) : resultStore.denominations(hypothesis);
+                if (format == Format.NDJSON) {
+                    written[0] = writeNdjson(out, hypothesis, denominations, since);
+                } else {
+                    written[0] = writeCsv(out, hypothesis, denominations, since);
+                }
+                log.info("Eksporterte " + written[0] + " resultater for " + hypothesis + " som " + format.extension
+                        + " på " + (System.currentTimeMillis() - start) + " ms");
+            } finally {
+                release.run();
+            }
+        };
+    }
+
+    private long writeNdjson(OutputStream out, String hypothesis, List<String> denominations, long since) throws IOException {
+        // Hvert resultat skrives først til en gjenbrukt buffer, slik at et ødelagt resultat kan hoppes over helt
+        ByteArrayOutputStream line = new ByteArrayOutputStream(4096);
+        long[] count = new long[1];
+        for (String denomination : denominations) {
+            resultStore.scan(hypothesis, denomination, (id, savedAt, json) -> {
+                if (savedAt < since) {
+                    return;
+                }
+                line.reset();
+                try (JsonParser parser = JSON.createParser(json);
+                     JsonGenerator gen = JSON.createGenerator(line)) {
+                    if (parser.nextToken() != JsonToken.START_OBJECT) {
+                        throw new JsonParseException(parser, "Expected a JSON object");
+                    }
+                    gen.writeStartObject();
+                    gen.writeStringField("id", id.toString());
+                    gen.writeStringField("savedAt", Instant.ofEpochMilli(savedAt).toString());
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.currentName();
+                        parser.nextToken();
+                        if (field.equals("id") || field.equals("savedAt")) {
+                            parser.skipChildren();
+                        } else {
+                            gen.writeFieldName(field);
+                            gen.copyCurrentStructure(parser);
+                        }
+                    }
+                    gen.writeEndObject();
+                } catch (JsonProcessingException e) {
+                    skip(id, e);
+                    return;
+                }
+                line.write('\n');
+                line.writeTo(out);
+                ndjsonRows.increment();
+                count[0]++;
+            });
+        }
+        out.flush();
+        return count[0];
+    }
+
+    private long writeCsv(OutputStream out, String hypothesis, List<String> denominations, long since) throws IOException {
+        HypothesisCatalog.Hypothesis evidence = catalog.get(hypothesis);
+        int columns = evidence == null ? 0 : evidence.size();
+        Map<Integer, Integer> columnById = new HashMap<>();
+        StringBuilder row = new StringBuilder(256).append("id,savedAt,denomination,aprioriPct,posteriorPct");
+        for (int i = 0; i < columns; i++) {
+            columnById.put(evidence.id(i), i);
+            String prefix = ",e" + evidence.id(i) + ".";
+            row.append(prefix).append("pehPct").append(prefix).append("penhPct").append(prefix).append("weight");
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 16 * 1024);
+        writer.append(row).append('\n');
+
+        // Én rad gjenbrukes for alle resultatene
+        Row values = new Row(columns);
+        long[] count = new long[1];
+        for (String denomination : denominations) {
+            resultStore.scan(hypothesis, denomination, (id, savedAt, json) -> {
+                if (savedAt < since) {
+                    return;
+                }
+                try {
+                    values.read(json, columnById);
+                } catch (JsonProcessingException e) {
+                    skip(id, e);
+                    return;
+                }
+                row.setLength(0);
+                row.append(id).append(',').append(Instant.ofEpochMilli(savedAt)).append(',');
+                csv(row, values.denomination);
+                row.append(',');
+                number(row, values.apriori);
+                row.append(',');
+                number(row, values.posterior);
+                for (int i = 0; i < columns; i++) {
+                    row.append(',');
+                    number(row, values.peh[i]);
+                    row.append(',');
+                    number(row, values.penh[i]);
+                    row.append(',');
+                    number(row, values.weight[i]);
+                }
+                writer.append(row).append('\n');
+                csvRows.increment();
+                count[0]++;
+            });
+        }
+        writer.flush();
+        return count[0];
+    }
+
+    private void skip(UUID id, JsonProcessingException e) {
+        skipped.increment();
+        log.warn("Hopper over resultat " + id + " i eksporten: " + e.getOriginalMessage());
+    }
+
+    // Verdiene i ett resultat, lest med en strømmende parser. Manglende verdier er NaN og skrives som tomme celler
+    private static final class Row {
+        String denomination;
+        double apriori;
+        double posterior;
+        final double[] peh;
+        final double[] penh;
+        final double[] weight;
+
+        Row(int columns) {
+            peh = new double[columns];
+            penh = new double[columns];
+            weight = new double[columns];
+        }
+
+        void read(byte[] json, Map<Integer, Integer> columnById) throws IOException {
+            denomination = null;
+            apriori = Double.NaN;
+            posterior = Double.NaN;
+            Arrays.fill(peh, Double.NaN);
+            Arrays.fill(penh, Double.NaN);
+            Arrays.fill(weight, Double.NaN);
+            try (JsonParser parser = JSON.createParser(json)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new JsonParseException(parser, "Expected a JSON object");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    JsonToken value = parser.nextToken();
+                    switch (field) {
+                        case "denomination" -> denomination = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                        case "aprioriPct" -> apriori = parser.getValueAsDouble();
+                        case "posteriorPct" -> posterior = parser.getValueAsDouble();
+                        case "evidence" -> readEvidence(parser, value, columnById);
+                        default -> parser.skipChildren();
+                    }
+                }
+            }
+        }
+
+        private void readEvidence(JsonParser parser, JsonToken value, Map<Integer, Integer> columnById) throws IOException {
+            if (value != JsonToken.START_ARRAY) {
+                parser.skipChildren();
+                return;
+            }
+            while ((value = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (value != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+                Integer id = null;
+                double p = Double.NaN;
+                double pn = Double.NaN;
+                double w = Double.NaN;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    parser.nextToken();
+                    switch (field) {
+                        case "id" -> id = parser.getValueAsInt();
+                        case "pehPct" -> p = parser.getValueAsDouble();
+                        case "penhPct" -> pn = parser.getValueAsDouble();
+                        case "weight" -> w = parser.getValueAsDouble();
+                        default -> parser.skipChildren();
+                    }
+                }
+                Integer column = id == null ? null : columnById.get(id);
+                if (column != null) { // Evidenser som ikke finnes i hypotesefila har ingen kolonne
+                    peh[column] = p;
+                    penh[column] = pn;
+                    weight[column] = w;
+                }
+            }
+        }
+    }
+
+    private static void number(StringBuilder row, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            row.append((long) value);
+        } else {
+            row.append(value);
+        }
+    }
+
+    // RFC 4180: felt med komma, anførselstegn eller linjeskift settes i anførselstegn
+    private static void csv(StringBuilder row, String value) {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            row.append(value);
+            return;
+        }
+        row.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+}
@@ -0,0 +1,212 @@
+package msit.apologetikk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/*
+ * Index from result id to where the result is stored (data/<hypothesis>/<denomination>/<id>.json), so that
+ * GET /api/results/{uuid} does not have to walk the data directory. The index is kept in memory and persisted as an
+ * append-only binary file (data/results.idx) with one record per result: the id as two longs followed by hypothesis
+ * and denomination. If the file is missing it is built by scanning data/ once at startup - delete it to force a rescan.
+ * close() leaves a marker (data/results.idx.clean) next to it. Without the marker the last run did not stop cleanly, and
+ * a crash between writing a result file and its record would hide the result, so load() then scans data/ for results
+ * the index does not have. Lookups only ever use the map in memory.
+ * Used by FileResultStore. Lookups do not lock, so GET /api/results/{uuid} never waits behind an fsync in sync().
+ */
+class ResultIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultIndex.class);
+
+    record Location(String hypothesis, String denomination) {
+    }
+
+    private final Path root;
+    private final Path indexFile;
+    private final Path cleanMarker;
+
+    private final Map<UUID, Location> index = new ConcurrentHashMap<>();
+    // Samme hypotese/denominasjon deles av mange resultater - vi holder bare én Location-instans per par
+    private final Map<Location, Location> locations = new HashMap<>();
+    private FileChannel channel;
+    private DataOutputStream out;
+
+    ResultIndex(Path root) {
+        this.root = root;
+        this.indexFile = root.resolve("results.idx");
+        this.cleanMarker = root.resolve("results.idx.clean");
+    }
+
+    public synchronized void load() throws IOException {
+        Files.createDirectories(root);
+        boolean existed = Files.exists(indexFile);
+        if (existed) {
+            readIndexFile();
+        } else {
+            scanDataDirectory();
+        }
+        channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        if (existed && !Files.exists(cleanMarker)) {
+            addMissing();
+        }
+        // Fra nå av kan indeksen ligge bak filene til den lukkes igjen - slettingen må være på disk før noe lagres
+        if (Files.deleteIfExists(cleanMarker)) {
+            try (FileChannel dir = FileChannel.open(root, StandardOpenOption.READ)) {
+                dir.force(true);
+            }
+        }
+        log.info("ResultIndex lastet med " + index.size() + " resultater");
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.flush();
+            channel.force(false);
+            out.close();
+            out = null;
+            Files.createFile(cleanMarker);
+        }
+    }
+
+    // Skriver indeksen helt ned på disk (fsync)
+    public synchronized void sync() throws IOException {
+        out.flush();
+        channel.force(false);
+    }
+
+    public Location get(UUID id) {
+        return index.get(id);
+    }
+
+    public synchronized void add(UUID id, String hypothesis, String denomination) throws IOException {
+        Location location = intern(new Location(hypothesis, denomination));
+        index.put(id, location);
+        writeRecord(out, id, location);
+        out.flush();
+    }
+
+    private Location intern(Location location) {
+        return locations.computeIfAbsent(location, l -> l);
+    }
+
+    private void readIndexFile() throws IOException {
+        long validLength = 0;
+        try (InputStream fileIn = Files.newInputStream(indexFile);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn))) {
+            while (true) {
+                UUID id;
+                Location location;
+                try {
+                    id = new UUID(in.readLong(), in.readLong());
+                    location = intern(new Location(in.readUTF(), in.readUTF()));
+                } catch (EOFException eof) {
+                    break;
+                }
+                index.put(id, location);
+                validLength += 16 + 2 + utfLength(location.hypothesis()) + 2 + utfLength(location.denomination());
+            }
+        }
+        // En ufullstendig siste post (f.eks. etter krasj) kuttes bort, slik at nye poster havner riktig
+        if (validLength < Files.size(indexFile)) {
+            log.warn("Kutter ufullstendig post på slutten av " + indexFile);
+            try (RandomAccessFile raf = new RandomAccessFile(indexFile.toFile(), "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+    }
+
+    private void scanDataDirectory() throws IOException {
+        log.info("Fant ikke " + indexFile + " - bygger indeksen fra " + root);
+        Path tmp = root.resolve("results.idx.tmp");
+        try (DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            walkDataDirectory((id, location) -> {
+                index.put(id, location);
+                writeRecord(tmpOut, id, location);
+            });
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Etter en krasj: legger til resultatfilene som ble skrevet uten at posten deres kom med i indeksen
+    private void addMissing() throws IOException {
+        log.info(indexFile + " ble ikke lukket sist - ser etter resultater i " + root + " som mangler i indeksen");
+        int[] added = {0};
+        walkDataDirectory((id, location) -> {
+            if (!index.containsKey(id)) {
+                index.put(id, location);
+                writeRecord(out, id, location);
+                added[0]++;
+            }
+        });
+        out.flush();
+        channel.force(false);
+        if (added[0] > 0) {
+            log.warn("La til " + added[0] + " resultater som manglet i " + indexFile);
+        }
+    }
+
+    private interface LocationVisitor {
+        void accept(UUID id, Location location) throws IOException;
+    }
+
+    // Hver data/<hypothesis>/<denomination>/<id>.json
+    private void walkDataDirectory(LocationVisitor visitor) throws IOException {
+        try (Stream<Path> walk = Files.walk(root, 3)) {
+            for (Path p : (Iterable<Path>) walk::iterator) {
+                if (root.relativize(p).getNameCount() != 3) {
+                    continue;
+                }
+                String fileName = p.getFileName().toString();
+                if (!fileName.endsWith(".json") || fileName.equals("average.json")) {
+                    continue;
+                }
+                UUID id;
+                try {
+                    id = UUID.fromString(fileName.substring(0, fileName.length() - ".json".length()));
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                visitor.accept(id, intern(new Location(p.getParent().getParent().getFileName().toString(), p.getParent().getFileName().toString())));
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, UUID id, Location location) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+        out.writeUTF(location.hypothesis());
+        out.writeUTF(location.denomination());
+    }
+
+    // Antall bytes writeUTF bruker for strengen (uten de to lengde-bytene)
+    private static int utfLength(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) len += 1;
+            else if (c > 0x07FF) len += 3;
+            else len += 2;
+        }
+        return len;
+    }
+}
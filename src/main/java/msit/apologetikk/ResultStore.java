@@ -0,0 +1,35 @@
+package msit.apologetikk;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * Storage for submitted results. Which implementation is used is chosen with apologetikk.store:
+ * "files" (default, one JSON file per result under data/<hypothesis>/<denomination>/) or
+ * "segment-log" (append-only segment files per hypothesis, see SegmentLogResultStore).
+ */
+public interface ResultStore {
+
+    interface ResultVisitor {
+        void accept(UUID id, long savedAt, byte[] json) throws IOException;
+    }
+
+    // Saved results are not guaranteed to be on disk until sync() has returned
+    void save(UUID id, String hypothesis, String denomination, long savedAt, byte[] json) throws IOException;
+
+    // Forces everything saved so far to stable storage (fsync)
+    void sync() throws IOException;
+
+    boolean contains(UUID id);
+
+    // Returns the stored JSON, or null if there is no result with this id
+    byte[] find(UUID id) throws IOException;
+
+    List<String> hypotheses() throws IOException;
+
+    List<String> denominations(String hypothesis) throws IOException;
+
+    // Visits every result stored for the hypothesis/denomination, in a stable order
+    void scan(String hypothesis, String denomination, ResultVisitor visitor) throws IOException;
+}
@@ -0,0 +1,70 @@
+package msit.apologetikk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/*
+ * Imports results from the file-per-result layout (data/<hypothesis>/<denomination>/<id>.json) into the segment log
+ * (data-log/), and optionally compacts the segments afterwards. Results that are already in the segment log are
+ * skipped, so the tool can be run again after an interrupted import. The original files are left in place.
+ *
+ *   java -cp apologetikk.jar -Dloader.main=msit.apologetikk.ResultStoreMigration \
+ *        org.springframework.boot.loader.launch.PropertiesLauncher [data-dir] [log-dir] [--compact]
+ *
+ * Stop the application first, then start it again with apologetikk.store=segment-log.
+ */
+public class ResultStoreMigration {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultStoreMigration.class);
+
+    public static void main(String[] args) throws IOException {
+        boolean compact = false;
+        Path dataDir = Paths.get("data");
+        String logDir = "data-log";
+        int positional = 0;
+        for (String arg : args) {
+            if (arg.equals("--compact")) {
+                compact = true;
+            } else if (positional++ == 0) {
+                dataDir = Paths.get(arg);
+            } else {
+                logDir = arg;
+            }
+        }
+
+        FileResultStore source = new FileResultStore(dataDir);
+        SegmentLogResultStore target = new SegmentLogResultStore(logDir, 64L * 1024 * 1024);
+        source.open();
+        target.open();
+        try {
+            int imported = 0;
+            int skipped = 0;
+            for (String hypothesis : source.hypotheses()) {
+                for (String denomination : source.denominations(hypothesis)) {
+                    int[] counts = new int[2];
+                    source.scan(hypothesis, denomination, (id, savedAt, json) -> {
+                        if (target.contains(id)) {
+                            counts[1]++;
+                        } else {
+                            target.save(id, hypothesis, denomination, savedAt, json);
+                            counts[0]++;
+                        }
+                    });
+                    imported += counts[0];
+                    skipped += counts[1];
+                }
+                if (compact) {
+                    target.compact(hypothesis);
+                }
+            }
+            log.info("Importerte " + imported + " resultater fra " + dataDir + " til " + logDir + " (" + skipped + " fantes fra før)");
+        } finally {
+            target.close();
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package msit.apologetikk;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Write pipeline for submitted results. Request threads put results in a bounded queue and get a future back. One
+ * writer thread takes everything that is queued (up to maxBatch), saves it to the ResultStore and makes it durable
+ * according to apologetikk.write.durability:
+ *
+ *   fsync-per-batch (default) - one sync() per batch, then every future in the batch completes (group commit)
+ *   fsync-per-write           - sync() after every result
+ *   async                     - futures complete as soon as the results are written, sync() only at shutdown
+ *
+ * When the queue is full the future fails with RejectedExecutionException, unless the caller has asked to wait for room
+ * (used by batch imports). The API answers that with 503 and Retry-After - see also AdmissionControl.
+ *
+ * A future fails only if its result was not saved. If sync() fails after save(), the result is already stored and
+ * visible in lookups and rebuilds, so its future still completes: the client gets 201 for a result that is stored but
+ * not confirmed on disk. The failure is logged and counted in apologetikk.write.sync.failures.
+ *
+ * The futures are completed on other threads, never on the writer thread: what callers chain to them (folding the
+ * result into the averages, which takes a lock) must not stop the writing. With spring.threads.virtual.enabled that is
+ * one virtual thread per result, otherwise a fixed pool of COMPLETION_THREADS platform threads.
+ *
+ * Metrics: apologetikk.write.queue.depth / .capacity (gauges), apologetikk.write.batch (time to save and sync a batch),
+ * apologetikk.write.batch.size, apologetikk.write.sync.failures and apologetikk.admission.rejected{reason=queue}.
+ */
+@Component
+public class ResultWriter {
+
+    enum Durability {FSYNC_PER_BATCH, FSYNC_PER_WRITE, ASYNC}
+
+    private record Pending(UUID id, String hypothesis, String denomination, long savedAt, byte[] json,
+                           CompletableFuture<Void> done) {
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(ResultWriter.class);
+
+    private static final int COMPLETION_THREADS = 4;
+
+    private final ResultStore resultStore;
+    private final Durability durability;
+    private final int maxBatch;
+    private final BlockingQueue<Pending> queue;
+    private final Thread writer;
+    private final ExecutorService completions;
+    private volatile boolean running = true;
+    // submit() sjekker running og legger i køen under leselåsen, stop() setter running under skrivelåsen. Når stop() har
+    // fått låsen kommer det ikke flere resultater i køen, så skrivetråden tømmer alt før den stopper
+    private final ReentrantReadWriteLock stopping = new ReentrantReadWriteLock();
+
+    private final Timer batchTimer;
+    private final DistributionSummary batchSize;
+    private final Counter rejected;
+    private final Counter syncFailures;
+
+    public ResultWriter(ResultStore resultStore,
+                        @Value("${apologetikk.write.durability:fsync-per-batch}") String durability,
+                        @Value("${apologetikk.write.queue-capacity:10000}") int queueCapacity,
+                        @Value("${apologetikk.write.max-batch:256}") int maxBatch,
+                        @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads,
+                        MeterRegistry registry) {
+        this.resultStore = resultStore;
+        this.durability = Durability.valueOf(durability.trim().toUpperCase().replace('-', '_'));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.writer = new Thread(this::writeLoop, "result-writer");
+        this.completions = virtualThreads
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(COMPLETION_THREADS, Thread.ofPlatform().name("result-completion-", 0).daemon(true).factory());
+
+        Gauge.builder("apologetikk.write.queue.depth", queue, BlockingQueue::size)
+                .description("Results waiting to be written")
+                .register(registry);
+        Gauge.builder("apologetikk.write.queue.capacity", queue, q -> q.size() + q.remainingCapacity())
+                .description("Size of the write queue")
+                .register(registry);
+        this.batchTimer = Timer.builder("apologetikk.write.batch")
+                .description("Time to save and sync one batch of results")
+                .tag("durability", this.durability.name().toLowerCase().replace('_', '-'))
+                .publishPercentileHistogram()
+                .register(registry);
+        this.batchSize = DistributionSummary.builder("apologetikk.write.batch.size")
+                .description("Results per batch")
+                .register(registry);
+        this.rejected = AdmissionControl.rejected(registry, "queue");
+        this.syncFailures = Counter.builder("apologetikk.write.sync.failures")
+                .description("Failed syncs after results were saved")
+                .register(registry);
+    }
+
+    @PostConstruct
+    public void start() {
+        writer.start();
+    }
+
+    // Skriver ut det som ligger i køen og stopper skrivetråden. Tråden avbrytes ikke med interrupt(), siden det ville
+    // lukket FileChannel-ene i ResultStore midt i en skriving
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        stopping.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            stopping.writeLock().unlock();
+        }
+        writer.join(TimeUnit.SECONDS.toMillis(30));
+        if (!writer.isAlive()) {
+            completions.shutdown(); // Ellers har skrivetråden fremtider igjen å fullføre
+        }
+    }
+
+    public CompletableFuture<Void> submit(UUID id, String hypothesis, String denomination, long savedAt, byte[] json) {
+        return submit(id, hypothesis, denomination, savedAt, json, 0);
+    }
+
+    // Som submit(), men venter opptil waitMillis på plass i køen før resultatet avvises
+    public CompletableFuture<Void> submit(UUID id, String hypothesis, String denomination, long savedAt, byte[] json, long waitMillis) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Pending pending = new Pending(id, hypothesis, denomination, savedAt, json, done);
+        boolean queued = false;
+        stopping.readLock().lock();
+        try {
+            queued = running && (waitMillis > 0 ? queue.offer(pending, waitMillis, TimeUnit.MILLISECONDS) : queue.offer(pending));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopping.readLock().unlock();
+        }
+        if (!queued) {
+            rejected.increment();
+            done.completeExceptionally(new RejectedExecutionException(running ? "Write queue is full" : "Result writer is stopped"));
+        }
+        return done;
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            queue.drainTo(batch, maxBatch - batch.size());
+            batchSize.record(batch.size());
+            batchTimer.record(() -> writeBatch(batch));
+            batch.clear();
+        }
+        // Bare hvis tråden ble avbrutt - ellers er køen tom her. Ingen skal vente på et svar som aldri kommer
+        List<Pending> left = new ArrayList<>();
+        queue.drainTo(left);
+        left.forEach(p -> completions.execute(() -> p.done().completeExceptionally(new RejectedExecutionException("Result writer is stopped"))));
+        if (durability == Durability.ASYNC) {
+            try {
+                resultStore.sync();
+            } catch (Exception e) {
+                log.error("Feil under sync ved nedstenging: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void writeBatch(List<Pending> batch) {
+        List<Pending> written = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            try {
+                resultStore.save(p.id(), p.hypothesis(), p.denomination(), p.savedAt(), p.json());
+            } catch (Exception e) {
+                completions.execute(() -> p.done().completeExceptionally(e));
+                continue;
+            }
+            written.add(p);
+            if (durability == Durability.FSYNC_PER_WRITE) {
+                sync(1);
+            }
+        }
+        if (durability == Durability.FSYNC_PER_BATCH && !written.isEmpty()) {
+            sync(written.size());
+        }
+        // Én oppgave per resultat, så et resultat som venter på låsen i AverageCalculator ikke holder igjen de andre
+        written.forEach(p -> completions.execute(() -> p.done().complete(null)));
+    }
+
+    // Resultatene er lagret og synlige uansett, så en feil her gir ikke feil til klienten - se klassekommentaren
+    private void sync(int results) {
+        try {
+            resultStore.sync();
+        } catch (Exception e) {
+            syncFailures.increment();
+            log.error("Feil under sync av " + results + " lagrede resultater - de er ikke bekreftet på disk: " + e.getMessage(), e);
+        }
+    }
+}
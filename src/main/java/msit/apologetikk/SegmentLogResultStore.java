@@ -0,0 +1,732 @@
+package msit.apologetikk;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/*
+ * Result store with one append-only log per hypothesis, split into segment files:
+ *
+ *   data-log/<hypothesis>/00000000000000000001.seg
+ *
+ * Each record is length-prefixed: [int payload length][int CRC32 of payload][payload], where the payload is
+ * [long id msb][long id lsb][long savedAt][short length + UTF-8 denomination][JSON]. When the active segment would grow
+ * beyond maxSegmentBytes it is sealed and a new one is started. A sealed segment gets an offset index (.idx) with
+ * id, offset and denomination for every record, so startup only has to scan the active segment. An index that is cut
+ * short or does not match its segment is ignored, and the segment is scanned instead. A torn record at the end of the
+ * active segment (crash during a write) is cut off when the store is opened.
+ *
+ * compact() rewrites the sealed segments of a hypothesis into as few full segments as possible, dropping duplicate ids.
+ * A hypothesis with a corrupt record in a sealed segment is not compacted, so nothing after the corrupt record is lost.
+ * Existing file-per-result data can be imported with ResultStoreMigration.
+ */
+@Component
+@ConditionalOnProperty(name = "apologetikk.store", havingValue = "segment-log")
+public class SegmentLogResultStore implements ResultStore {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentLogResultStore.class);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String COMPACT_DIR = "compact";
+    private static final String COMPACT_DONE = "DONE";
+    private static final int HEADER_BYTES = 8;
+    private static final int MIN_PAYLOAD_BYTES = 8 + 8 + 8 + 2; // id, savedAt og lengden på denominasjonen
+
+    record Record(UUID id, long savedAt, String denomination, byte[] json) {
+    }
+
+    private record RecordRef(Segment segment, long offset) {
+    }
+
+    private static final class Segment {
+        final long sequence;
+        final Path file;
+        final FileChannel channel;
+        long size;
+
+        Segment(long sequence, Path file, FileChannel channel, long size) {
+            this.sequence = sequence;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    // Alt i en HypothesisLog endres under lock. Lesing tar compaction.readLock, slik at compact() kan bytte ut segmentene.
+    // lock er en ReentrantLock og ikke synchronized, siden den holdes under skriving og fsync - en virtuell tråd som venter
+    // på en monitor blir låst fast til bærertråden sin
+    private static final class HypothesisLog {
+        final Path dir;
+        final List<Segment> segments = new ArrayList<>(); // Det siste segmentet er det aktive
+        final Map<String, List<RecordRef>> byDenomination = new TreeMap<>();
+        List<IndexEntry> activeEntries = new ArrayList<>(); // Blir offset-indeksen når det aktive segmentet forsegles
+        final ReentrantLock lock = new ReentrantLock();
+        final ReentrantReadWriteLock compaction = new ReentrantReadWriteLock();
+
+        HypothesisLog(Path dir) {
+            this.dir = dir;
+        }
+    }
+
+    private final Path root;
+    private final long maxSegmentBytes;
+    private final Map<String, HypothesisLog> logs = new ConcurrentHashMap<>();
+    private final Map<UUID, RecordRef> ids = new ConcurrentHashMap<>();
+    // Hypoteser med poster som ikke er fsync-et ennå
+    private final Set<HypothesisLog> unsynced = ConcurrentHashMap.newKeySet();
+
+    public SegmentLogResultStore() {
+        this("data-log", 64L * 1024 * 1024);
+    }
+
+    @Autowired
+    public SegmentLogResultStore(@Value("${apologetikk.store.segment-log.dir:data-log}") String dir,
+                                 @Value("${apologetikk.store.segment-log.max-segment-bytes:67108864}") long maxSegmentBytes) {
+        this.root = Paths.get(dir);
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        Files.createDirectories(root);
+        try (Stream<Path> dirs = Files.list(root)) {
+            for (Path dir : dirs.filter(Files::isDirectory).sorted().toList()) {
+                HypothesisLog hypLog = new HypothesisLog(dir);
+                loadSegments(hypLog);
+                logs.put(dir.getFileName().toString(), hypLog);
+            }
+        }
+        log.info("SegmentLogResultStore åpnet med " + ids.size() + " resultater i " + logs.size() + " hypoteser");
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        for (HypothesisLog hypLog : logs.values()) {
+            hypLog.lock.lock();
+            try {
+                closeSegments(hypLog);
+            } finally {
+                hypLog.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void save(UUID id, String hypothesis, String denomination, long savedAt, byte[] json) throws IOException {
+        HypothesisLog hypLog = logs.computeIfAbsent(hypothesis, h -> new HypothesisLog(root.resolve(h)));
+        ByteBuffer record = encode(new Record(id, savedAt, denomination, json));
+        hypLog.lock.lock();
+        try {
+            if (ids.containsKey(id)) {
+                return; // Lagring er idempotent per id
+            }
+            Segment active = activeSegment(hypLog);
+            if (active.size > 0 && active.size + record.remaining() > maxSegmentBytes) {
+                active = roll(hypLog);
+            }
+            long offset = active.size;
+            writeFully(active.channel, record, offset);
+            active.size += record.capacity();
+
+            RecordRef ref = new RecordRef(active, offset);
+            hypLog.byDenomination.computeIfAbsent(denomination, d -> new ArrayList<>()).add(ref);
+            hypLog.activeEntries.add(new IndexEntry(id, offset, denomination));
+            ids.putIfAbsent(id, ref);
+        } finally {
+            hypLog.lock.unlock();
+        }
+        unsynced.add(hypLog);
+    }
+
+    // Én fsync per hypotese som har fått nye poster, uansett hvor mange poster det er
+    @Override
+    public void sync() throws IOException {
+        for (HypothesisLog hypLog : List.copyOf(unsynced)) {
+            unsynced.remove(hypLog);
+            hypLog.lock.lock();
+            try {
+                activeSegment(hypLog).channel.force(false);
+            } finally {
+                hypLog.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(UUID id) {
+        return ids.containsKey(id);
+    }
+
+    @Override
+    public byte[] find(UUID id) throws IOException {
+        RecordRef ref = ids.get(id);
+        if (ref == null) {
+            return null;
+        }
+        HypothesisLog hypLog = logOf(ref.segment());
+        hypLog.compaction.readLock().lock();
+        try {
+            ref = ids.get(id); // Kan ha flyttet seg hvis compact() kjørte mens vi ventet på låsen
+            return ref == null ? null : readRecord(ref.segment().channel, ref.offset()).json();
+        } finally {
+            hypLog.compaction.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> hypotheses() {
+        List<String> names = new ArrayList<>(logs.keySet());
+        names.sort(null);
+        return names;
+    }
+
+    @Override
+    public List<String> denominations(String hypothesis) {
+        HypothesisLog hypLog = logs.get(hypothesis);
+        if (hypLog == null) {
+            return List.of();
+        }
+        hypLog.lock.lock();
+        try {
+            return new ArrayList<>(hypLog.byDenomination.keySet());
+        } finally {
+            hypLog.lock.unlock();
+        }
+    }
+
+    @Override
+    public void scan(String hypothesis, String denomination, ResultVisitor visitor) throws IOException {
+        HypothesisLog hypLog = logs.get(hypothesis);
+        if (hypLog == null) {
+            return;
+        }
+        hypLog.compaction.readLock().lock();
+        try {
+            List<RecordRef> refs;
+            hypLog.lock.lock();
+            try {
+                refs = new ArrayList<>(hypLog.byDenomination.getOrDefault(denomination, List.of()));
+            } finally {
+                hypLog.lock.unlock();
+            }
+            for (RecordRef ref : refs) {
+                Record record = readRecord(ref.segment().channel, ref.offset());
+                if (!ref.equals(ids.get(record.id()))) {
+                    continue; // Duplikat av en id som allerede finnes tidligere i loggen
+                }
+                visitor.accept(record.id(), record.savedAt(), record.json());
+            }
+        } finally {
+            hypLog.compaction.readLock().unlock();
+        }
+    }
+
+    /* Rewrites the sealed segments of a hypothesis without duplicate ids, packed into full segments. The new segments
+     * are written to a compact/ directory first, and a DONE marker listing the old segments that get no replacement
+     * makes the swap complete on the next open() if the process dies half way. Stops without changing anything if a
+     * sealed segment does not read cleanly to the end. */
+    public void compact(String hypothesis) throws IOException {
+        HypothesisLog hypLog = logs.get(hypothesis);
+        if (hypLog == null) {
+            return;
+        }
+        List<Segment> sealed;
+        hypLog.lock.lock();
+        try {
+            sealed = new ArrayList<>(hypLog.segments.subList(0, Math.max(0, hypLog.segments.size() - 1)));
+        } finally {
+            hypLog.lock.unlock();
+        }
+        if (sealed.isEmpty()) {
+            return;
+        }
+
+        Path work = hypLog.dir.resolve(COMPACT_DIR);
+        deleteRecursively(work);
+        Files.createDirectories(work);
+
+        // Postene fra de forseglede segmentene skrives inn i nye segmenter som får de gamle sekvensnumrene, i samme rekkefølge
+        Set<UUID> seen = new HashSet<>();
+        List<Long> sequences = sealed.stream().map(s -> s.sequence).toList();
+        int next = 0;
+        FileChannel out = null;
+        Path outFile = null;
+        long outSize = 0;
+        List<IndexEntry> outIndex = new ArrayList<>();
+        int kept = 0;
+        int dropped = 0;
+        try {
+            for (Segment segment : sealed) {
+                List<Record> records = readAll(segment.file);
+                if (records == null) {
+                    log.error("Korrupt post i forseglet segment " + segment.file + " - komprimerer ikke " + hypothesis);
+                    deleteRecursively(work);
+                    return;
+                }
+                for (Record record : records) {
+                    if (!seen.add(record.id())) {
+                        dropped++;
+                        continue;
+                    }
+                    ByteBuffer bytes = encode(record);
+                    if (out == null || (outSize > 0 && outSize + bytes.remaining() > maxSegmentBytes)) {
+                        if (out != null) {
+                            out.force(true);
+                            out.close();
+                            writeIndex(indexFileOf(outFile), outIndex);
+                        }
+                        if (next == sequences.size()) {
+                            log.warn("Komprimering av " + hypothesis + " ville gitt flere segmenter enn før - avbryter");
+                            deleteRecursively(work);
+                            return;
+                        }
+                        outFile = work.resolve(segmentName(sequences.get(next++)));
+                        out = FileChannel.open(outFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                        outSize = 0;
+                        outIndex = new ArrayList<>();
+                    }
+                    writeFully(out, bytes, outSize);
+                    outIndex.add(new IndexEntry(record.id(), outSize, record.denomination()));
+                    outSize += bytes.capacity();
+                    kept++;
+                }
+            }
+            if (out != null) {
+                out.force(true);
+                out.close();
+                out = null;
+                writeIndex(indexFileOf(outFile), outIndex);
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+        // DONE må ligge på disken før finishCompaction begynner å slette
+        writeDone(work, sequences.subList(next, sequences.size()));
+
+        hypLog.compaction.writeLock().lock();
+        try {
+            hypLog.lock.lock();
+            try {
+                closeSegments(hypLog);
+                finishCompaction(hypLog.dir);
+                loadSegments(hypLog);
+            } finally {
+                hypLog.lock.unlock();
+            }
+        } finally {
+            hypLog.compaction.writeLock().unlock();
+        }
+        log.info("Komprimerte " + sealed.size() + " segmenter for " + hypothesis + ": beholdt " + kept + " poster, fjernet " + dropped + " duplikater");
+    }
+
+    private HypothesisLog logOf(Segment segment) {
+        return logs.get(segment.file.getParent().getFileName().toString());
+    }
+
+    private Segment activeSegment(HypothesisLog hypLog) throws IOException {
+        if (hypLog.segments.isEmpty()) {
+            Files.createDirectories(hypLog.dir);
+            hypLog.segments.add(openSegment(hypLog.dir.resolve(segmentName(1)), 1, true));
+        }
+        return hypLog.segments.get(hypLog.segments.size() - 1);
+    }
+
+    // Forsegler det aktive segmentet (fsync + offset-indeks) og starter et nytt
+    private Segment roll(HypothesisLog hypLog) throws IOException {
+        Segment active = activeSegment(hypLog);
+        active.channel.force(true);
+        writeIndex(indexFileOf(active.file), hypLog.activeEntries);
+        hypLog.activeEntries = new ArrayList<>();
+
+        long sequence = active.sequence + 1;
+        Segment next = openSegment(hypLog.dir.resolve(segmentName(sequence)), sequence, true);
+        hypLog.segments.add(next);
+        return next;
+    }
+
+    private void loadSegments(HypothesisLog hypLog) throws IOException {
+        if (Files.exists(hypLog.dir.resolve(COMPACT_DIR))) {
+            finishCompaction(hypLog.dir);
+        }
+        List<Path> files;
+        try (Stream<Path> list = Files.list(hypLog.dir)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+        // Etter compact: segmentene som er byttet ut. Id-ene deres pekes om til de nye segmentene én og én, så contains()
+        // aldri ser et lagret resultat som mangler underveis
+        Set<Segment> old = Collections.newSetFromMap(new IdentityHashMap<>());
+        old.addAll(hypLog.segments);
+        Map<UUID, RecordRef> loaded = new HashMap<>();
+        hypLog.segments.clear();
+        hypLog.byDenomination.clear();
+        hypLog.activeEntries = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            boolean last = i == files.size() - 1;
+            String name = file.getFileName().toString();
+            long sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = openSegment(file, sequence, last);
+            hypLog.segments.add(segment);
+
+            Path indexFile = indexFileOf(file);
+            List<IndexEntry> entries = null;
+            if (!last && Files.exists(indexFile)) {
+                entries = readIndex(indexFile);
+                if (entries == null || !matches(entries, segment)) {
+                    log.warn("Indeksen " + indexFile + " stemmer ikke med segmentet - leser segmentet i stedet");
+                    entries = null;
+                }
+            }
+            if (entries == null) {
+                entries = new ArrayList<>();
+                long validLength = scanSegment(file, entries);
+                if (validLength < segment.size) {
+                    if (last) {
+                        log.warn("Kutter ufullstendig post på slutten av " + file);
+                        segment.channel.truncate(validLength);
+                        segment.size = validLength;
+                    } else {
+                        log.error("Korrupt post i forseglet segment " + file + " etter posisjon " + validLength);
+                    }
+                }
+                if (!last) {
+                    writeIndex(indexFile, entries);
+                }
+            }
+            for (IndexEntry entry : entries) {
+                RecordRef ref = new RecordRef(segment, entry.offset());
+                hypLog.byDenomination.computeIfAbsent(entry.denomination(), d -> new ArrayList<>()).add(ref);
+                loaded.putIfAbsent(entry.id(), ref); // Første forekomst gjelder, som i save() og compact()
+            }
+            if (last) {
+                hypLog.activeEntries = entries;
+            }
+        }
+        // En id som allerede finnes i en annen hypotese beholder den første forekomsten
+        loaded.forEach((id, ref) -> ids.compute(id, (k, current) ->
+                current == null || old.contains(current.segment()) ? ref : current));
+        if (!old.isEmpty()) {
+            ids.values().removeIf(ref -> old.contains(ref.segment()));
+        }
+    }
+
+    private static void closeSegments(HypothesisLog hypLog) throws IOException {
+        for (Segment segment : hypLog.segments) {
+            if (segment.channel.isOpen()) {
+                segment.channel.force(true);
+                segment.channel.close();
+            }
+        }
+    }
+
+    /* Fullfører en komprimering som ble avbrutt (eller rydder bort en som ikke ble ferdig skrevet). Kan kjøres flere
+     * ganger: de nye segmentene erstatter de gamle med samme sekvensnummer ved rename, og bare de gamle segmentene
+     * som ikke får en erstatning (de som står i DONE) slettes. Et segment som allerede er flyttet inn slettes aldri. */
+    private static void finishCompaction(Path dir) throws IOException {
+        Path work = dir.resolve(COMPACT_DIR);
+        Path done = work.resolve(COMPACT_DONE);
+        if (Files.exists(done)) {
+            List<Path> replacements;
+            try (Stream<Path> list = Files.list(work)) {
+                replacements = list.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+            }
+            // Indeksene til segmentene som byttes ut fjernes først. Mangler en indeks etter et krasj, lages den på nytt
+            for (Path replacement : replacements) {
+                Files.deleteIfExists(indexFileOf(dir.resolve(replacement.getFileName())));
+            }
+            for (String sequence : Files.readAllLines(done)) {
+                Path old = dir.resolve(segmentName(Long.parseLong(sequence)));
+                Files.deleteIfExists(indexFileOf(old));
+                Files.deleteIfExists(old);
+            }
+            for (Path replacement : replacements) {
+                Files.move(replacement, dir.resolve(replacement.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                Path index = indexFileOf(replacement);
+                if (Files.exists(index)) {
+                    Files.move(index, dir.resolve(index.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            syncDirectory(dir);
+        }
+        deleteRecursively(work);
+    }
+
+    private static void writeDone(Path work, List<Long> unreplaced) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        unreplaced.forEach(sequence -> lines.append(sequence).append('\n'));
+        try (FileChannel channel = FileChannel.open(work.resolve(COMPACT_DONE), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            writeFully(channel, ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8)), 0);
+            channel.force(true);
+        }
+        syncDirectory(work);
+    }
+
+    // fsync av en mappe, så nye og flyttede filer i den overlever et krasj. Støttes ikke på alle plattformer (Windows)
+    private static void syncDirectory(Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Kunne ikke fsync-e mappen " + dir + ": " + e.getMessage());
+        }
+    }
+
+    private static Segment openSegment(Path file, long sequence, boolean writable) throws IOException {
+        FileChannel channel = writable
+                ? FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file, StandardOpenOption.READ);
+        return new Segment(sequence, file, channel, channel.size());
+    }
+
+    private static String segmentName(long sequence) {
+        return String.format("%020d", sequence) + SEGMENT_SUFFIX;
+    }
+
+    private static Path indexFileOf(Path segmentFile) {
+        String name = segmentFile.getFileName().toString();
+        return segmentFile.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    /* ---- Postformat ---- */
+
+    private static ByteBuffer encode(Record record) {
+        byte[] denomination = record.denomination().getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 8 + 8 + 8 + 2 + denomination.length + record.json().length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + payloadLength);
+        buf.putInt(payloadLength);
+        buf.putInt(0); // CRC fylles inn under
+        buf.putLong(record.id().getMostSignificantBits());
+        buf.putLong(record.id().getLeastSignificantBits());
+        buf.putLong(record.savedAt());
+        buf.putShort((short) denomination.length);
+        buf.put(denomination);
+        buf.put(record.json());
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), HEADER_BYTES, payloadLength);
+        buf.putInt(4, (int) crc.getValue());
+        buf.flip();
+        return buf;
+    }
+
+    private static Record decode(byte[] payload) {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        UUID id = new UUID(buf.getLong(), buf.getLong());
+        long savedAt = buf.getLong();
+        byte[] denomination = new byte[buf.getShort()];
+        buf.get(denomination);
+        byte[] json = new byte[buf.remaining()];
+        buf.get(json);
+        return new Record(id, savedAt, new String(denomination, StandardCharsets.UTF_8), json);
+    }
+
+    private static Record readRecord(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, offset);
+        int length = header.getInt(0);
+        int crc = header.getInt(4);
+        if (length < MIN_PAYLOAD_BYTES || length > channel.size() - offset - HEADER_BYTES) {
+            throw new IOException("Korrupt post på posisjon " + offset);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, offset + HEADER_BYTES);
+        if (crc(payload.array()) != crc) {
+            throw new IOException("Korrupt post på posisjon " + offset);
+        }
+        return decode(payload.array());
+    }
+
+    // Leser alle postene i et segment sekvensielt. Null hvis en post er ufullstendig eller korrupt før slutten av filen
+    private static List<Record> readAll(Path file) throws IOException {
+        List<Record> records = new ArrayList<>();
+        long size = Files.size(file);
+        long offset = 0;
+        try (InputStream fileIn = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn))) {
+            while (offset < size) {
+                byte[] payload = readPayload(in, size - offset);
+                if (payload == null) {
+                    return null;
+                }
+                records.add(decode(payload));
+                offset += HEADER_BYTES + payload.length;
+            }
+        }
+        return records;
+    }
+
+    // Som readAll, men samler bare id, posisjon og denominasjon. Returnerer lengden på den gyldige delen av filen
+    private static long scanSegment(Path file, List<IndexEntry> entries) throws IOException {
+        long size = Files.size(file);
+        long offset = 0;
+        try (InputStream fileIn = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn))) {
+            while (true) {
+                byte[] payload = readPayload(in, size - offset);
+                if (payload == null) {
+                    break;
+                }
+                Record record = decode(payload);
+                entries.add(new IndexEntry(record.id(), offset, record.denomination()));
+                offset += HEADER_BYTES + payload.length;
+            }
+        }
+        return offset;
+    }
+
+    // Null ved slutten av filen, og for en post som er ufullstendig, korrupt eller lengre enn resten av filen (remaining)
+    private static byte[] readPayload(DataInputStream in, long remaining) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length < MIN_PAYLOAD_BYTES || length > remaining - HEADER_BYTES) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return crc(payload) == crc ? payload : null;
+        } catch (EOFException eof) {
+            return null;
+        }
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                throw new EOFException("Uventet slutt på segment ved posisjon " + position);
+            }
+        }
+        buf.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    /* ---- Offset-indeks for forseglede segmenter ---- */
+
+    private record IndexEntry(UUID id, long offset, String denomination) {
+    }
+
+    // Indeksen må ligge på disken før rename, ellers kan en krasj etterlate en indeks som er tom eller kuttet
+    private static void writeIndex(Path indexFile, List<IndexEntry> entries) throws IOException {
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            for (IndexEntry entry : entries) {
+                out.writeLong(entry.id().getMostSignificantBits());
+                out.writeLong(entry.id().getLeastSignificantBits());
+                out.writeLong(entry.offset());
+                out.writeUTF(entry.denomination());
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(indexFile.getParent());
+    }
+
+    // Null hvis indeksen slutter midt i en oppføring
+    private static List<IndexEntry> readIndex(Path indexFile) throws IOException {
+        List<IndexEntry> entries = new ArrayList<>();
+        try (InputStream fileIn = Files.newInputStream(indexFile);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn))) {
+            while (true) {
+                long msb;
+                try {
+                    msb = in.readLong();
+                } catch (EOFException eof) {
+                    break;
+                }
+                try {
+                    entries.add(new IndexEntry(new UUID(msb, in.readLong()), in.readLong(), in.readUTF()));
+                } catch (EOFException eof) {
+                    return null;
+                }
+            }
+        }
+        return entries;
+    }
+
+    // Om indeksen dekker hele segmentet: posisjonene starter på 0 og øker, og den siste posten slutter der filen slutter.
+    // En indeks som mangler oppføringer på slutten (eller hører til en annen versjon av segmentet) faller på det siste
+    private static boolean matches(List<IndexEntry> entries, Segment segment) throws IOException {
+        if (entries.isEmpty()) {
+            return segment.size == 0;
+        }
+        long previous = -1;
+        for (IndexEntry entry : entries) {
+            if (entry.offset() <= previous || entry.offset() > segment.size - HEADER_BYTES - MIN_PAYLOAD_BYTES) {
+                return false;
+            }
+            previous = entry.offset();
+        }
+        if (entries.get(0).offset() != 0) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(segment.channel, header, previous);
+        return previous + HEADER_BYTES + header.getInt(0) == segment.size;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path p : walk.sorted((a, b) -> b.getNameCount() - a.getNameCount()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package msit.apologetikk;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Several instances behind a load balancer. Every node has its own data/ (or data-log/) with the results submitted to
+ * it, and its AverageCalculator keeps the partial aggregates (TimeBuckets per denomination) of those results only. Each
+ * time they change, the node writes them for the hypothesis to
+ *
+ *   <shared-dir>/<hypothesis>/<node-id>.partials
+ *
+ * as a new version (temp file + rename, so a reader never sees half a file). Every poll-ms each node looks for files
+ * of the other nodes that have changed, reads them, and has AverageCalculator publish the changed denominations again:
+ * its own partials merged with the latest ones of every other node. The averages, groups, windows and distributions
+ * that a node serves are then for the results of all nodes, without any node reading results of another, without
+ * rescans, and without locks between the nodes - a node only ever writes its own files. Adding a node adds submit
+ * throughput; reading costs one merge per node for the denominations that changed.
+ *
+ * A node that is stopped keeps its last file, so its results still count. Looking up, exporting or indexing single
+ * results only sees the results of the node that stored them.
+ *
+ * Off when shared-dir is empty (the default) - then nothing here is used. node-id must be different for every node
+ * and the same after a restart; the default is the host name and server.port. Any directory all nodes can read and
+ * write works, e.g. an NFS mount, or a local directory for several instances on one machine (see ClusterTest).
+ *
+ * Metrics: apologetikk.cluster.partials.written, apologetikk.cluster.partials.read and apologetikk.cluster.nodes.
+ */
+@Component
+public class SharedPartials {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedPartials.class);
+
+    private static final int MAGIC = 0x41504750; // "APGP"
+    private static final int FORMAT = 1;
+    private static final String SUFFIX = ".partials";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Pattern SAFE = Pattern.compile("[A-Za-z0-9._-]+");
+
+    // Det siste en annen node har publisert for én hypotese. totals er summen av bøttene i hver denominasjon
+    record NodePartials(String node, long version, long publishedAt, Map<String, TimeBuckets> buckets,
+                        Map<String, AverageAccumulator> totals) {
+    }
+
+    /* One hypothesis merged over the nodes: the totals of every denomination any node has results for, and the time
+     * buckets of the denominations that were asked for. Must not be changed - they may be shared with the nodes'
+     * partials. */
+    record Merged(Map<String, AverageAccumulator> totals, Map<String, TimeBuckets> buckets) {
+    }
+
+    private final Path dir;
+    private final String nodeId;
+    private final AtomicLong versions = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    // Hypotese -> node -> siste delsummer. Byttes ut i sin helhet av poll-tråden, leses uten lås
+    private volatile Map<String, Map<String, NodePartials>> remote = Map.of();
+    // Filene som er lest, med inode, endringstid og størrelse da - bare poll-tråden bruker den
+    private final Map<Path, String> seen = new HashMap<>();
+
+    private final List<BiConsumer<String, Set<String>>> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService poller;
+
+    private final Counter written;
+    private final Counter read;
+
+    @Autowired
+    public SharedPartials(@Value("${apologetikk.cluster.shared-dir:}") String sharedDir,
+                          @Value("${apologetikk.cluster.node-id:}") String nodeId,
+                          @Value("${apologetikk.cluster.poll-ms:1000}") long pollMillis,
+                          @Value("${server.port:8080}") int port,
+                          MeterRegistry registry) {
+        this.dir = sharedDir == null || sharedDir.isBlank() ? null : Paths.get(sharedDir.trim()).toAbsolutePath();
+        this.nodeId = dir == null ? "" : nodeId == null || nodeId.isBlank() ? defaultNodeId(port) : nodeId.trim();
+        if (dir != null && !SAFE.matcher(this.nodeId).matches()) {
+            throw new IllegalArgumentException("apologetikk.cluster.node-id kan bare ha bokstaver, tall, '.', '_' og '-': " + this.nodeId);
+        }
+        this.written = Counter.builder("apologetikk.cluster.partials.written")
+                .description("Versions of this node's partials written to the shared directory")
+                .register(registry);
+        this.read = Counter.builder("apologetikk.cluster.partials.read")
+                .description("Versions of other nodes' partials read from the shared directory")
+                .register(registry);
+        Gauge.builder("apologetikk.cluster.nodes", this, SharedPartials::nodes)
+                .description("Other nodes with partials in the shared directory")
+                .register(registry);
+
+        if (dir == null) {
+            this.poller = null;
+            return;
+        }
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new IllegalStateException("Kunne ikke lage " + dir + ": " + e.getMessage(), e);
+        }
+        // Det som ligger der fra før leses før første gjenoppbygging, så den kan slå sammen med en gang
+        poll();
+        log.info("SharedPartials: node " + this.nodeId + " deler delsummer i " + dir + ", fant " + nodes() + " andre noder");
+        this.poller = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("shared-partials").daemon(true).factory());
+        long interval = Math.max(50, pollMillis);
+        poller.scheduleWithFixedDelay(this::poll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // Av - for AverageCalculator.main og benchmarkene
+    static SharedPartials disabled() {
+        return new SharedPartials("", "", 0, 0, new SimpleMeterRegistry());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+    }
+
+    boolean enabled() {
+        return dir != null;
+    }
+
+    String nodeId() {
+        return nodeId;
+    }
+
+    // Called with the hypothesis and the denominations that changed on another node, from the poll thread
+    void onRemoteChange(BiConsumer<String, Set<String>> listener) {
+        listeners.add(listener);
+    }
+
+    // Hypotheses and their denominations that other nodes have results for
+    Map<String, Set<String>> remoteDenominations() {
+        Map<String, Set<String>> denominations = new TreeMap<>();
+        remote.forEach((hypothesis, nodes) -> nodes.values().forEach(partials ->
+                denominations.computeIfAbsent(hypothesis, k -> new TreeSet<>()).addAll(partials.buckets().keySet())));
+        return denominations;
+    }
+
+    /* Writes the partials of this node for the hypothesis as a new version. buckets must have every denomination this
+     * node has results for, and must not be changed while they are written. */
+    void publish(String hypothesis, Map<String, TimeBuckets> buckets) {
+        if (dir == null) {
+            return;
+        }
+        long version = versions.incrementAndGet();
+        try {
+            Path hypothesisDir = dir.resolve(hypothesis);
+            Files.createDirectories(hypothesisDir);
+            // Ikke createTempFile - den gir filen rettigheter bare eieren kan lese, og nodene kan kjøre som andre brukere
+            Path tmp = hypothesisDir.resolve(nodeId + "." + version + TEMP_SUFFIX);
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT);
+                    out.writeUTF(nodeId);
+                    out.writeLong(version);
+                    out.writeLong(System.currentTimeMillis());
+                    out.writeInt(buckets.size());
+                    for (Map.Entry<String, TimeBuckets> entry : buckets.entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        entry.getValue().write(out);
+                    }
+                }
+                Files.move(tmp, hypothesisDir.resolve(nodeId + SUFFIX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp); // Bare hvis noe gikk galt før rename
+            }
+            written.increment();
+        } catch (IOException e) {
+            // De andre nodene får denne versjonen med neste endring - gjennomsnittene på denne noden er uansett riktige
+            log.error("Kunne ikke skrive delsummene for " + hypothesis + " til " + dir + ": " + e.getMessage(), e);
+        }
+    }
+
+    /* This node's totals and time buckets for a hypothesis, merged with the latest partials of every other node. Totals
+     * are merged for every denomination, buckets only for the given ones. A map from this node is used as it is when
+     * no other node has the denomination, so they must not be changed afterwards either. */
+    Merged merge(String hypothesis, Map<String, AverageAccumulator> totals, Map<String, TimeBuckets> buckets,
+                 Set<String> denominations) {
+        Map<String, NodePartials> nodes = remote.getOrDefault(hypothesis, Map.of());
+        if (nodes.isEmpty()) {
+            Map<String, TimeBuckets> own = new TreeMap<>(buckets);
+            own.keySet().retainAll(denominations);
+            return new Merged(totals, own);
+        }
+        Map<String, AverageAccumulator> mergedTotals = new TreeMap<>(totals);
+        Map<String, Integer> sources = new HashMap<>();
+        totals.keySet().forEach(d -> sources.put(d, 1));
+        for (NodePartials node : nodes.values()) {
+            node.totals().forEach((denomination, total) -> {
+                // Kopieres først når en denominasjon finnes på mer enn én node
+                mergedTotals.merge(denomination, total, (a, b) -> {
+                    AverageAccumulator merged = sources.get(denomination) == 1 ? new AverageAccumulator(a) : a;
+                    merged.merge(b);
+                    return merged;
+                });
+                sources.merge(denomination, 1, Integer::sum);
+            });
+        }
+
+        Map<String, TimeBuckets> mergedBuckets = new TreeMap<>();
+        for (String denomination : denominations) {
+            TimeBuckets merged = null;
+            TimeBuckets only = buckets.get(denomination);
+            for (NodePartials node : nodes.values()) {
+                TimeBuckets other = node.buckets().get(denomination);
+                if (other == null) {
+                    continue;
+                }
+                if (only == null && merged == null) {
+                    only = other;
+                    continue;
+                }
+                if (merged == null) {
+                    merged = new TimeBuckets();
+                    merged.merge(only);
+                }
+                merged.merge(other);
+            }
+            TimeBuckets result = merged != null ? merged : only;
+            if (result != null) {
+                mergedBuckets.put(denomination, result);
+            }
+        }
+        return new Merged(mergedTotals, mergedBuckets);
+    }
+
+    // Leser filene til de andre nodene som er nye eller endret siden sist, og sier fra om hva som er endret. En ny fil
+    // (ny stamp) er alltid nyere enn den forrige - versjonen sammenlignes ikke, for den starter på klokka ved oppstart,
+    // og en node som startes igjen med klokka bak forrige kjøring ville ellers bli ignorert til den tok igjen
+    private void poll() {
+        Map<String, Map<String, NodePartials>> next = null;
+        Map<String, Set<String>> changed = new TreeMap<>();
+        Set<Path> present = new HashSet<>();
+        try (DirectoryStream<Path> hypotheses = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            for (Path hypothesisDir : hypotheses) {
+                String hypothesis = hypothesisDir.getFileName().toString();
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(hypothesisDir, "*" + SUFFIX)) {
+                    for (Path file : files) {
+                        String node = file.getFileName().toString();
+                        node = node.substring(0, node.length() - SUFFIX.length());
+                        if (node.equals(nodeId)) {
+                            continue;
+                        }
+                        present.add(file);
+                        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                        // Hver versjon er en ny fil (rename), så fileKey (inode) endres selv om tid og størrelse ikke gjør det
+                        String stamp = attributes.fileKey() + "/" + attributes.lastModifiedTime() + "/" + attributes.size();
+                        if (stamp.equals(seen.get(file))) {
+                            continue;
+                        }
+                        NodePartials partials = readPartials(file);
+                        seen.put(file, stamp);
+                        if (partials == null) {
+                            continue;
+                        }
+                        NodePartials previous = remote.getOrDefault(hypothesis, Map.of()).get(node);
+                        if (next == null) {
+                            next = copy(remote);
+                        }
+                        next.computeIfAbsent(hypothesis, k -> new TreeMap<>()).put(node, partials);
+                        Set<String> denominations = changed.computeIfAbsent(hypothesis, k -> new TreeSet<>());
+                        denominations.addAll(partials.buckets().keySet());
+                        if (previous != null) {
+                            denominations.addAll(previous.buckets().keySet());
+                        }
+                        read.increment();
+                    }
+                }
+            }
+            // Filer som er borte glemmes, så seen ikke vokser med hver fil som noen gang har vært der
+            seen.keySet().retainAll(present);
+        } catch (IOException e) {
+            log.warn("Kunne ikke lese delsummer fra " + dir + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            log.error("Feil under lesing av delsummer fra " + dir + ": " + e.getMessage(), e);
+        }
+        if (next == null) {
+            return;
+        }
+        remote = next;
+        changed.forEach((hypothesis, denominations) -> {
+            for (BiConsumer<String, Set<String>> listener : listeners) {
+                listener.accept(hypothesis, denominations);
+            }
+        });
+    }
+
+    // Null hvis filen ikke kan leses - den prøves igjen når den endres
+    private NodePartials readPartials(Path file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file), 64 * 1024)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a partials file");
+            }
+            int format = in.readInt();
+            if (format != FORMAT) {
+                throw new IOException("Unknown format " + format);
+            }
+            String node = in.readUTF();
+            long version = in.readLong();
+            long publishedAt = in.readLong();
+            int count = in.readInt();
+            Map<String, TimeBuckets> buckets = new TreeMap<>();
+            Map<String, AverageAccumulator> totals = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                String denomination = in.readUTF();
+                TimeBuckets denominationBuckets = TimeBuckets.read(in);
+                buckets.put(denomination, denominationBuckets);
+                totals.put(denomination, denominationBuckets.total());
+            }
+            return new NodePartials(node, version, publishedAt, Collections.unmodifiableMap(buckets),
+                    Collections.unmodifiableMap(totals));
+        } catch (IOException e) {
+            log.warn("Hopper over " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Map<String, Map<String, NodePartials>> copy(Map<String, Map<String, NodePartials>> remote) {
+        Map<String, Map<String, NodePartials>> copy = new HashMap<>();
+        remote.forEach((hypothesis, nodes) -> copy.put(hypothesis, new TreeMap<>(nodes)));
+        return copy;
+    }
+
+    private int nodes() {
+        Set<String> nodes = new HashSet<>();
+        remote.values().forEach(byNode -> nodes.addAll(byNode.keySet()));
+        return nodes.size();
+    }
+
+    private static String defaultNodeId(int port) {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "node";
+        }
+        return SAFE.matcher(host).matches() ? host + "-" + port : "node-" + port;
+    }
+}
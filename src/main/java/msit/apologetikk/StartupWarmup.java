@@ -0,0 +1,180 @@
+package msit.apologetikk;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.web.context.WebServerInitializedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Warm-up after startup, before the readiness probe (/actuator/health/readiness) reports ACCEPTING_TRAFFIC - Spring Boot
+ * only does that when every ApplicationRunner has returned. The hypothesis catalog, the result index and the
+ * average.json snapshots are already loaded when the beans are created; the warm-up
+ *
+ *   1. waits for the first full rebuild (at most rebuild-timeout-ms), so every snapshot has the partials that groups,
+ *      windows and distributions are built from, instead of answering 503 right after a deploy,
+ *   2. builds the AverageCache entry (JSON and gzip) of every hypothesis, and
+ *   3. sends requests (GET only) to the read endpoints over HTTP on the server's own port, so Tomcat, Spring MVC, Jackson
+ *      and the JIT have seen the hot paths before the first real client does. The port is the one the server actually
+ *      bound (from WebServerInitializedEvent, so server.port=0 works), on server.address if that is set to a specific
+ *      address and on loopback otherwise. If the server cannot be reached at all the requests are skipped.
+ *
+ * Turned off with apologetikk.warmup.enabled=false. See the fast-startup profile in pom.xml for AOT and CDS.
+ */
+@Component
+public class StartupWarmup implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(StartupWarmup.class);
+
+    private final AverageCalculator averageCalculator;
+    private final AverageCache averageCache;
+    private final AverageSnapshots snapshots;
+    private final HypothesisCatalog catalog;
+    private final StaticAssets staticAssets;
+    private final boolean enabled;
+    private final long rebuildTimeoutMillis;
+    private final int requests;
+    private final String address;
+    private final String contextPath;
+    private final Timer warmupTimer;
+    // Porten serveren faktisk lytter på, satt før ApplicationRunner-ene kjøres. 0 uten webserver
+    private volatile int port;
+
+    public StartupWarmup(AverageCalculator averageCalculator, AverageCache averageCache,
+                         AverageSnapshots snapshots, HypothesisCatalog catalog, StaticAssets staticAssets,
+                         @Value("${apologetikk.warmup.enabled:true}") boolean enabled,
+                         @Value("${apologetikk.warmup.rebuild-timeout-ms:60000}") long rebuildTimeoutMillis,
+                         @Value("${apologetikk.warmup.requests:300}") int requests,
+                         @Value("${server.address:}") String address,
+                         @Value("${server.servlet.context-path:}") String contextPath,
+                         MeterRegistry registry) {
+        this.averageCalculator = averageCalculator;
+        this.averageCache = averageCache;
+        this.snapshots = snapshots;
+        this.catalog = catalog;
+        this.staticAssets = staticAssets;
+        this.enabled = enabled;
+        this.rebuildTimeoutMillis = rebuildTimeoutMillis;
+        this.requests = requests;
+        this.address = address == null ? "" : address.trim();
+        this.contextPath = contextPath == null ? "" : contextPath.trim();
+        this.warmupTimer = Timer.builder("apologetikk.startup.warmup")
+                .description("Warm-up after startup, before the service reports ready")
+                .register(registry);
+    }
+
+    // Management-serveren (management.server.port) har sitt eget navnerom - det er applikasjonens port vi vil ha
+    @EventListener
+    public void onWebServerInitialized(WebServerInitializedEvent event) {
+        if (event.getApplicationContext().getServerNamespace() == null) {
+            port = event.getWebServer().getPort();
+        }
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (!averageCalculator.awaitFirstRebuild(rebuildTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            log.warn("StartupWarmup: første gjenoppbygging ble ikke ferdig på " + rebuildTimeoutMillis + " ms - fortsetter uten");
+        }
+        long rebuilt = System.nanoTime();
+
+        int cached = 0;
+        for (String hypothesis : catalog.names()) {
+            if (averageCache.get(hypothesis, snapshots::get) != null) {
+                cached++;
+            }
+        }
+
+        int sent = 0;
+        int failed = 0;
+        String base = requests > 0 ? baseUrl() : null;
+        if (base != null) {
+            List<URI> targets = targets(base);
+            HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+            for (int i = 0; i < requests && !targets.isEmpty(); i++) {
+                HttpRequest.Builder request = HttpRequest.newBuilder(targets.get(i % targets.size())).timeout(Duration.ofSeconds(10));
+                if (i % 2 == 0) {
+                    request.header("Accept-Encoding", "gzip");
+                }
+                try {
+                    client.send(request.build(), HttpResponse.BodyHandlers.discarding());
+                    sent++;
+                } catch (ConnectException | HttpConnectTimeoutException unreachable) {
+                    // Kommer vi ikke fram én gang, gjør vi det ikke de neste gangene heller - ikke hold igjen readiness
+                    log.warn("StartupWarmup: kommer ikke fram til " + base + " (" + unreachable + ") - hopper over forespørslene");
+                    failed++;
+                    break;
+                } catch (IOException e) {
+                    failed++;
+                }
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        warmupTimer.record(elapsed, TimeUnit.NANOSECONDS);
+        log.info("StartupWarmup ferdig på " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms: gjenoppbygging "
+                + TimeUnit.NANOSECONDS.toMillis(rebuilt - start) + " ms, " + cached + " hypoteser i cachen, "
+                + sent + " forespørsler" + (failed > 0 ? " (" + failed + " feilet)" : ""));
+    }
+
+    // http://<adresse>:<port><context-path>, eller null uten webserver
+    private String baseUrl() {
+        if (port <= 0) {
+            return null;
+        }
+        InetAddress host = InetAddress.getLoopbackAddress();
+        if (!address.isEmpty()) {
+            try {
+                InetAddress configured = InetAddress.getByName(address);
+                if (!configured.isAnyLocalAddress()) {
+                    host = configured; // Serveren lytter bare på denne adressen
+                }
+            } catch (UnknownHostException e) {
+                log.warn("StartupWarmup: ukjent server.address " + address + " - bruker " + host.getHostAddress());
+            }
+        }
+        String hostAddress = host instanceof Inet6Address ? "[" + host.getHostAddress() + "]" : host.getHostAddress();
+        return "http://" + hostAddress + ":" + port + contextPath;
+    }
+
+    // De samme lese-endepunktene (og hashede hypotesefilene) som bayes.html, stats.html og results.html bruker, for hypotesene som har publiserte gjennomsnitt
+    private List<URI> targets(String base) {
+        List<URI> targets = new ArrayList<>();
+        for (String hypothesis : catalog.names()) {
+            targets.add(URI.create(base + staticAssets.url("evidence/" + hypothesis + ".json")));
+            if (snapshots.get(hypothesis) == null) {
+                continue;
+            }
+            String query = base + "/api/average?hypothesis=" + hypothesis;
+            targets.add(URI.create(query));
+            targets.add(URI.create(query + "&groups=christian,non-christian"));
+            targets.add(URI.create(query + "&days=30"));
+            targets.add(URI.create(base + "/api/average/distribution?hypothesis=" + hypothesis));
+        }
+        return targets;
+    }
+}
@@ -0,0 +1,194 @@
+package msit.apologetikk;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/*
+ * The content-hashed copies of static/evidence/*.json, js/*.js and css/*.css that StaticAssetBuilder (src/build) makes
+ * at build time, e.g. /evidence/tutorial.3f2a9c1b7d4e.json, with their gzip (and brotli, if it was installed when the
+ * jar was built) variants. asset-manifest.json maps the logical names to the hashed ones; the pages refer to the hashed
+ * names and app.js looks the evidence files up in the manifest.
+ *
+ * A hashed name is never reused for other content, so the answers are Cache-Control: public, max-age=1 year, immutable
+ * - browsers and proxies keep them without revalidating. Every variant is read into memory at startup (about 1 MB),
+ * and a request only writes the bytes that are already compressed: nothing is read from the jar or compressed per
+ * request, and Tomcat leaves answers with Content-Encoding alone. The plain names are still served by WebConfig and
+ * Spring's static handler, and must be revalidated.
+ *
+ * Without asset-manifest.json (e.g. when run from an IDE that does not run process-classes) nothing is hashed, and
+ * url() gives the plain names. Requests are counted in apologetikk.static.requests (tag encoding=br|gzip|identity).
+ */
+@RestController
+class StaticAssets {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final Logger log = LoggerFactory.getLogger(StaticAssets.class);
+
+    static final String MANIFEST = "asset-manifest.json";
+    private static final Pattern HASHED = Pattern.compile(".+\\.[0-9a-f]{12}\\.(json|js|css)");
+    private static final CacheControl IMMUTABLE = CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().immutable();
+
+    // Ett hashet navn med innhold og komprimerte varianter (null hvis de ikke ble laget). etag er hashen i navnet
+    record Asset(MediaType type, String etag, byte[] content, byte[] gzip, byte[] brotli) {
+        String encodedETag(String encoding) {
+            return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+        }
+    }
+
+    private final Map<String, String> manifest;
+    private final Map<String, Asset> assets;
+    private final Counter brotliRequests;
+    private final Counter gzipRequests;
+    private final Counter identityRequests;
+
+    StaticAssets(MeterRegistry registry) throws IOException {
+        String root = "static/";
+        Map<String, String> manifest = Map.of();
+        Map<String, Asset> assets = new HashMap<>();
+        long bytes = 0;
+        Resource manifestResource = new ClassPathResource(root + MANIFEST);
+        if (manifestResource.exists()) {
+            try (InputStream in = manifestResource.getInputStream()) {
+                manifest = MAPPER.readValue(in, new TypeReference<Map<String, String>>() {
+                });
+            }
+            for (String hashed : manifest.values()) {
+                byte[] content = read(new ClassPathResource(root + hashed));
+                if (content == null) {
+                    throw new IOException(hashed + " står i " + MANIFEST + ", men finnes ikke");
+                }
+                int extension = hashed.lastIndexOf('.');
+                String hash = hashed.substring(hashed.lastIndexOf('.', extension - 1) + 1, extension);
+                Asset asset = new Asset(MediaTypeFactory.getMediaType(hashed).orElse(MediaType.APPLICATION_OCTET_STREAM),
+                        "\"" + hash + "\"", content, read(new ClassPathResource(root + hashed + ".gz")),
+                        read(new ClassPathResource(root + hashed + ".br")));
+                assets.put(hashed, asset);
+                bytes += content.length + length(asset.gzip()) + length(asset.brotli());
+            }
+            log.info("StaticAssets lastet " + assets.size() + " hashede filer (" + bytes / 1024 + " KB med komprimerte varianter)");
+        } else {
+            log.info("StaticAssets: fant ikke " + MANIFEST + " - bruker vanlige navn uten hash");
+        }
+        this.manifest = Collections.unmodifiableMap(manifest);
+        this.assets = Map.copyOf(assets);
+
+        this.brotliRequests = requests(registry, "br");
+        this.gzipRequests = requests(registry, "gzip");
+        this.identityRequests = requests(registry, "identity");
+    }
+
+    private static Counter requests(MeterRegistry registry, String encoding) {
+        return Counter.builder("apologetikk.static.requests")
+                .tag("encoding", encoding)
+                .description("Hashed static files served from memory")
+                .register(registry);
+    }
+
+    // The URL of a static file (e.g. "evidence/tutorial.json"): the hashed name if the build made one, else the plain name
+    String url(String logical) {
+        return "/" + manifest.getOrDefault(logical, logical);
+    }
+
+    // Om filnavnet er en hashet kopi - HypothesisCatalog skal bare lese de vanlige hypotesefilene
+    static boolean isHashed(String filename) {
+        return HASHED.matcher(filename).matches();
+    }
+
+    @GetMapping({"/evidence/{file:.+\\.[0-9a-f]{12}\\.json}", "/js/{file:.+\\.[0-9a-f]{12}\\.js}", "/css/{file:.+\\.[0-9a-f]{12}\\.css}"})
+    public ResponseEntity<byte[]> get(HttpServletRequest request,
+                                      @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        Asset asset = assets.get(request.getRequestURI().substring(request.getContextPath().length() + 1));
+        if (asset == null) {
+            return ResponseEntity.notFound().build();
+        }
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok()
+                .contentType(asset.type())
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .cacheControl(IMMUTABLE);
+        if (acceptEncoding != null) {
+            if (asset.brotli() != null && accepts(acceptEncoding, "br")) {
+                brotliRequests.increment();
+                return ok.eTag(asset.encodedETag("br")).header(HttpHeaders.CONTENT_ENCODING, "br").body(asset.brotli());
+            }
+            if (asset.gzip() != null && accepts(acceptEncoding, "gzip")) {
+                gzipRequests.increment();
+                return ok.eTag(asset.encodedETag("gzip")).header(HttpHeaders.CONTENT_ENCODING, "gzip").body(asset.gzip());
+            }
+        }
+        identityRequests.increment();
+        return ok.eTag(asset.etag()).body(asset.content());
+    }
+
+    /* Om Accept-Encoding godtar kodingen: den er nevnt uten q=0, eller "*" er det og den ikke er nevnt selv.
+     * "gzip;q=0" betyr at klienten ikke vil ha gzip, så det holder ikke å se etter navnet i headeren. */
+    static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.split(";");
+            String name = parts[0].trim();
+            boolean acceptable = true;
+            for (int i = 1; i < parts.length; i++) {
+                String[] parameter = parts[i].split("=", 2);
+                if (parameter.length == 2 && parameter[0].trim().equalsIgnoreCase("q")) {
+                    acceptable = qValue(parameter[1].trim()) > 0;
+                }
+            }
+            if (name.equalsIgnoreCase(coding)) {
+                return acceptable;
+            }
+            if (name.equals("*")) {
+                wildcard = acceptable;
+            }
+        }
+        return wildcard;
+    }
+
+    // En q-verdi som ikke kan leses regnes som 0
+    private static double qValue(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] read(Resource resource) throws IOException {
+        if (!resource.exists()) {
+            return null;
+        }
+        try (InputStream in = resource.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+}
@@ -0,0 +1,192 @@
+package msit.apologetikk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/*
+ * The results of one variant (hypothesis + denomination) split by when they were saved (UTC): one AverageAccumulator
+ * per day for recent results, and one per month for months that are entirely older than the daily buckets kept. Every
+ * bucket is a partial aggregate, so the average of a window is the merge of the buckets in it - the stored results are
+ * never read again. Buckets are keyed by the epoch day they start on.
+ *
+ * A window that starts inside a compacted month gets the whole month, so the start a window actually got is returned
+ * with it. Daily and monthly buckets never cover the same month: compact() only moves whole months.
+ *
+ * The buckets are changed under the AverageCalculator lock. publish() gives an immutable copy for an AverageSnapshots
+ * snapshot that shares the buckets with this one; a shared bucket is copied before it is changed again, so publishing
+ * does not copy buckets that did not change.
+ *
+ * merge() adds the buckets of another TimeBuckets (from another node, see SharedPartials) bucket by bucket, and
+ * write/read give the buckets in binary form for the files the nodes share.
+ */
+final class TimeBuckets {
+
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    private final TreeMap<Long, AverageAccumulator> days = new TreeMap<>();
+    private final TreeMap<Long, AverageAccumulator> months = new TreeMap<>();
+
+    // Resultater fra før denne dagen legges i månedsbøtter
+    private long firstDailyDay = Long.MIN_VALUE;
+
+    // Bøtter som er delt med et publisert øyeblikksbilde, og må kopieres før de endres
+    private final Set<AverageAccumulator> published = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // The result of a window: the merged buckets, and the day the first of them starts on
+    record Window(AverageAccumulator average, long from) {
+    }
+
+    static long epochDay(long millis) {
+        return Math.floorDiv(millis, MILLIS_PER_DAY);
+    }
+
+    static long monthStart(long epochDay) {
+        return LocalDate.ofEpochDay(epochDay).withDayOfMonth(1).toEpochDay();
+    }
+
+    private static long nextMonthStart(long monthStart) {
+        return LocalDate.ofEpochDay(monthStart).plusMonths(1).toEpochDay();
+    }
+
+    void add(long savedAt, JsonNode result) {
+        bucket(epochDay(savedAt)).add(result);
+    }
+
+    void add(long savedAt, byte[] json) throws IOException {
+        bucket(epochDay(savedAt)).add(json);
+    }
+
+    private AverageAccumulator bucket(long day) {
+        return day < firstDailyDay ? writable(months, monthStart(day)) : writable(days, day);
+    }
+
+    private AverageAccumulator writable(TreeMap<Long, AverageAccumulator> buckets, long start) {
+        AverageAccumulator bucket = buckets.get(start);
+        if (bucket == null) {
+            bucket = new AverageAccumulator();
+            buckets.put(start, bucket);
+        } else if (published.remove(bucket)) {
+            bucket = new AverageAccumulator(bucket);
+            buckets.put(start, bucket);
+        }
+        return bucket;
+    }
+
+    // Moves the daily buckets of every month that ends before keepFromDay into monthly buckets
+    void compact(long keepFromDay) {
+        firstDailyDay = Math.max(firstDailyDay, monthStart(keepFromDay));
+        NavigableMap<Long, AverageAccumulator> old = days.headMap(firstDailyDay, false);
+        for (Map.Entry<Long, AverageAccumulator> day : old.entrySet()) {
+            writable(months, monthStart(day.getKey())).merge(day.getValue());
+            published.remove(day.getValue());
+        }
+        old.clear();
+    }
+
+    /* Adds the buckets of other to these. If the two have compacted different months, both end up compacted up to the
+     * later of them, so daily and monthly buckets still never cover the same month. other is not changed. */
+    void merge(TimeBuckets other) {
+        long keepFromDay = Math.max(firstDailyDay, other.firstDailyDay);
+        if (keepFromDay != Long.MIN_VALUE) {
+            compact(keepFromDay);
+        }
+        for (Map.Entry<Long, AverageAccumulator> month : other.months.entrySet()) {
+            writable(months, month.getKey()).merge(month.getValue());
+        }
+        for (Map.Entry<Long, AverageAccumulator> day : other.days.entrySet()) {
+            bucket(day.getKey()).merge(day.getValue());
+        }
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeLong(firstDailyDay);
+        write(out, months);
+        write(out, days);
+    }
+
+    private static void write(DataOutput out, TreeMap<Long, AverageAccumulator> buckets) throws IOException {
+        out.writeInt(buckets.size());
+        for (Map.Entry<Long, AverageAccumulator> bucket : buckets.entrySet()) {
+            out.writeLong(bucket.getKey());
+            bucket.getValue().write(out);
+        }
+    }
+
+    static TimeBuckets read(DataInput in) throws IOException {
+        TimeBuckets buckets = new TimeBuckets();
+        buckets.firstDailyDay = in.readLong();
+        read(in, buckets.months);
+        read(in, buckets.days);
+        if (!buckets.months.isEmpty() && buckets.months.lastKey() >= buckets.firstDailyDay) {
+            throw new IOException("Monthly bucket after the first daily day " + buckets.firstDailyDay);
+        }
+        return buckets;
+    }
+
+    private static void read(DataInput in, TreeMap<Long, AverageAccumulator> buckets) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Negative number of buckets: " + size);
+        }
+        for (int i = 0; i < size; i++) {
+            buckets.put(in.readLong(), AverageAccumulator.read(in));
+        }
+    }
+
+    // All results in the buckets
+    AverageAccumulator total() {
+        AverageAccumulator total = new AverageAccumulator();
+        months.values().forEach(total::merge);
+        days.values().forEach(total::merge);
+        return total;
+    }
+
+    // A copy for a snapshot. The copy must not be changed - it shares the buckets with this one
+    TimeBuckets publish() {
+        TimeBuckets copy = new TimeBuckets();
+        copy.days.putAll(days);
+        copy.months.putAll(months);
+        copy.firstDailyDay = firstDailyDay;
+        published.clear();
+        published.addAll(days.values());
+        published.addAll(months.values());
+        return copy;
+    }
+
+    // The results saved on sinceDay or later (widened to the start of a compacted month), or null if there are none
+    Window since(long sinceDay) {
+        AverageAccumulator merged = new AverageAccumulator();
+        long from = Long.MAX_VALUE;
+        // En månedsbøtte er med hvis måneden slutter etter sinceDay
+        for (Map.Entry<Long, AverageAccumulator> month : months.tailMap(monthStart(sinceDay), true).entrySet()) {
+            merged.merge(month.getValue());
+            from = Math.min(from, month.getKey());
+        }
+        for (Map.Entry<Long, AverageAccumulator> day : days.tailMap(sinceDay, true).entrySet()) {
+            merged.merge(day.getValue());
+            from = Math.min(from, day.getKey());
+        }
+        return merged.getCount() == 0 ? null : new Window(merged, Math.min(from, sinceDay));
+    }
+
+    // The results saved in the month starting on monthStart, or null if there are none
+    AverageAccumulator month(long monthStart) {
+        AverageAccumulator merged = new AverageAccumulator();
+        AverageAccumulator compacted = months.get(monthStart);
+        if (compacted != null) {
+            merged.merge(compacted);
+        }
+        days.subMap(monthStart, true, nextMonthStart(monthStart), false).values().forEach(merged::merge);
+        return merged.getCount() == 0 ? null : merged;
+    }
+}
@@ -0,0 +1,61 @@
+package msit.apologetikk;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    // Hypotesefilene endres bare ved ny deploy, så ETag beregnes én gang per fil og holdes i minnet
+    private final Map<String, String> evidenceETags = new ConcurrentHashMap<>();
+
+    private final AdmissionControl admissionControl;
+
+    public WebConfig(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    // Innsendinger og nye strømmer går gjennom token buckets, og lesing av gjennomsnitt telles så gjenoppbygging kan vike for dem
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(admissionControl)
+                .addPathPatterns("/api/results", "/api/results/batch",
+                        "/api/average", "/api/average/monthly", "/api/average/distribution", "/api/average/stream");
+    }
+
+    @Override
+    public void addResourceHandlers(ResourceHandlerRegistry registry) {
+        // static/evidence/*.json: klienten må alltid revalidere, men får 304 (If-None-Match / If-Modified-Since) når filen er uendret
+        registry.addResourceHandler("/evidence/**")
+                .addResourceLocations("classpath:/static/evidence/")
+                .setCacheControl(CacheControl.noCache())
+                .setUseLastModified(true)
+                .setEtagGenerator(this::evidenceETag);
+    }
+
+    private String evidenceETag(Resource resource) {
+        String name = String.valueOf(resource.getFilename());
+        String etag = evidenceETags.get(name);
+        if (etag != null) {
+            return etag;
+        }
+        // Filen leses utenfor computeIfAbsent, som ellers holder en lås i kartet mens vi venter på disken
+        try (InputStream in = resource.getInputStream()) {
+            etag = ETags.of(in.readAllBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        String existing = evidenceETags.putIfAbsent(name, etag);
+        return existing != null ? existing : etag;
+    }
+}
@@ -201,6 +201,21 @@ createApp({
      * Logikk knyttet til oppstart av bayes.html-siden
      ****************************************************/
 
+    // Hypotesefilene har hashede navn fra byggingen (asset-manifest.json), og caches da av nettleseren uten revalidering.
+    // Uten manifest (f.eks. kjørt fra IDE) brukes vanlig navn
+    async function assetUrl(name) {
+      try {
+        const res = await fetch('asset-manifest.json');
+        if (res.ok) {
+          const manifest = await res.json();
+          return manifest[name] ?? name;
+        }
+      } catch (e) {
+        console.warn('Kunne ikke lese asset-manifest.json', e);
+      }
+      return name;
+    }
+
     function getHypoteseStrFromUrl() {
       const params = new URLSearchParams(window.location.search);
       return params.get('id'); // "id" ble brukt som parameternavn, vi burde vel endre det til "hypotese", men ikke nå (6.9.2025)
@@ -208,7 +223,7 @@ createApp({
 
     onMounted(async () => {
       const hypoteseStr = getHypoteseStrFromUrl();
-      const res = await fetch(`evidence/${hypoteseStr}.json`);
+      const res = await fetch(await assetUrl(`evidence/${hypoteseStr}.json`));
       const json = await res.json();
       // Ensure the name from the query string is preserved on the loaded JSON
       hypJson.value = {...json, name: hypoteseStr};
@@ -49,7 +49,22 @@ createApp({
       console.log("Data.length:", data);
     }
 
-    onMounted(load);
+    // Nye gjennomsnitt sendes fra serveren når de endres (Server-Sent Events). EventSource kobler til igjen av seg selv.
+    function subscribe() {
+      const params = new URLSearchParams(location.search);
+      const hyp = params.get('hyp');
+      const source = new EventSource(`./api/average/stream?hypothesis=${encodeURIComponent(hyp)}`);
+      source.addEventListener('average', (event) => {
+        const data = JSON.parse(event.data);
+        stats.averages = Array.isArray(data.averages) ? data.averages : [];
+        console.log('Averages updated (#)', stats.averages.length);
+      });
+    }
+
+    onMounted(() => {
+      load();
+      if (window.EventSource) subscribe();
+    });
 
     return {stats};
   }